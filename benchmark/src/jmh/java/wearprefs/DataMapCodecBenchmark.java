@@ -0,0 +1,67 @@
+package wearprefs;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures encoding and decoding preference payloads, for single values and for whole-file batches.
+ */
+@State(Scope.Thread)
+public class DataMapCodecBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int keyCount;
+
+    private DataMap single;
+    private byte[] singleEncoded;
+    private DataMap batch;
+    private byte[] batchEncoded;
+
+    @Setup public void setUp() {
+        single = new DataMap();
+        single.putString("file_name", "benchmark");
+        single.putString("key", "key_0");
+        single.putString("value", "value_0");
+        singleEncoded = single.toByteArray();
+
+        final DataMap values = new DataMap();
+        for (int i = 0; i < keyCount; i++) {
+            switch (i % 3) {
+                case 0:
+                    values.putString("key_" + i, "value_" + i);
+                    break;
+                case 1:
+                    values.putInt("key_" + i, i);
+                    break;
+                default:
+                    values.putBoolean("key_" + i, i % 2 == 0);
+            }
+        }
+        batch = new DataMap();
+        batch.putString("file_name", "benchmark");
+        batch.putDataMap("values", values);
+        batchEncoded = batch.toByteArray();
+    }
+
+    @Benchmark public byte[] encodeSingle() {
+        return single.toByteArray();
+    }
+
+    @Benchmark public DataMap decodeSingle() {
+        return DataMap.fromByteArray(singleEncoded);
+    }
+
+    @Benchmark public byte[] encodeBatch() {
+        return batch.toByteArray();
+    }
+
+    @Benchmark public DataMap decodeBatch() {
+        return DataMap.fromByteArray(batchEncoded);
+    }
+
+}
@@ -0,0 +1,83 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures maintaining the key set of a file, as done for every sent change.
+ */
+@State(Scope.Thread)
+public class KeySetBenchmark {
+
+    private static final String PATH = "/wearprefs_benchmark_";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int keyCount;
+
+    private LoopbackTransport.Network network;
+    private Transport transport;
+    private KeySetIndex index;
+    private String newKey;
+
+    @Setup(Level.Trial) public void setUp() {
+        network = new LoopbackTransport.Network();
+        transport = network.createNode("benchmark");
+
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < keyCount; i++) {
+            keys.add("key_" + i);
+        }
+        KeySetUtil.setKeySet(transport, PATH, keys);
+
+        index = new KeySetIndex(transport, new MetricsRecorder(), new Runnable() {
+            @Override public void run() { }
+        });
+        index.add(PATH, "key_0");
+        newKey = "key_" + keyCount;
+    }
+
+    @TearDown(Level.Trial) public void tearDown() {
+        network.shutdown();
+    }
+
+    /** Adding a key that is already known, the most common case */
+    @Benchmark public boolean addExistingKey() {
+        return index.add(PATH, "key_" + (keyCount / 2));
+    }
+
+    /**
+     * Adding a new key, and writing the key set back. The key is removed again
+     * afterwards, so that every invocation writes a key set of the same size.
+     */
+    @Benchmark public void addNewKeyAndFlush() {
+        index.add(PATH, newKey);
+        index.flush();
+        index.remove(PATH, newKey, System.currentTimeMillis());
+    }
+
+    /** Reading the whole key set, as the index does once per file */
+    @Benchmark public Set<String> loadKeySet() {
+        // The loopback transport calls back before returning
+        final List<Set<String>> result = new ArrayList<>(1);
+        transport.getDataMaps(PATH, new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull final List<DataMap> items) {
+                result.add(KeySetUtil.getKeySetFromAllNodes(items));
+            }
+        });
+        return result.get(0);
+    }
+
+}
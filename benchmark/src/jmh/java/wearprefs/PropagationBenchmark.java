@@ -0,0 +1,91 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from a change on one device until it has been
+ * saved on another, through two WearPrefs instances connected by a
+ * {@link LoopbackTransport} without simulated latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PropagationBenchmark {
+
+    private static final String FILE_NAME = "benchmark";
+    private static final String KEY = "key_0";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int keyCount;
+
+    private LoopbackTransport.Network network;
+    private WearPrefs handheld;
+    private WearPrefs wearable;
+    private SharedPreferences handheldPrefs;
+    private SharedPreferences wearablePrefs;
+
+    private volatile CountDownLatch received;
+    private int nextValue = 0;
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener receiver =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    final CountDownLatch latch = received;
+                    if (KEY.equals(key) && latch != null) {
+                        latch.countDown();
+                    }
+                }
+            };
+
+    @Setup(Level.Trial) public void setUp() {
+        handheldPrefs = new InMemorySharedPreferences();
+        wearablePrefs = new InMemorySharedPreferences();
+
+        final SharedPreferences.Editor editor = handheldPrefs.edit();
+        for (int i = 0; i < keyCount; i++) {
+            editor.putString("key_" + i, "value_" + i);
+        }
+        editor.commit();
+
+        network = new LoopbackTransport.Network();
+        handheld = new WearPrefs(network.createNode("handheld"));
+        wearable = new WearPrefs(network.createNode("wearable"));
+        handheld.initFor(handheldPrefs, FILE_NAME, SyncOptions.DEFAULT, System.nanoTime());
+        wearable.initFor(wearablePrefs, FILE_NAME, SyncOptions.DEFAULT, System.nanoTime());
+
+        wearablePrefs.registerOnSharedPreferenceChangeListener(receiver);
+    }
+
+    @TearDown(Level.Trial) public void tearDown() {
+        handheld.release();
+        wearable.release();
+        network.shutdown();
+    }
+
+    @Benchmark public void changeToRemoteApply() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        received = latch;
+
+        handheldPrefs.edit().putString(KEY, "changed_" + nextValue++).apply();
+
+        if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Change was not received");
+        }
+    }
+
+}
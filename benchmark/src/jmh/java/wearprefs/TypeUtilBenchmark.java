@@ -0,0 +1,86 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Measures converting single preference values between SharedPreferences and DataMaps.
+ */
+@State(Scope.Thread)
+public class TypeUtilBenchmark {
+
+    @Param({"string", "int", "long", "boolean", "float", "string_set"})
+    public String type;
+
+    private Object value;
+    private int typeTag;
+    private Object received;
+    private DataMap dataMap;
+    private SharedPreferences.Editor editor;
+
+    @Setup public void setUp() {
+        switch (type) {
+            case "string":
+                value = "The quick brown fox jumps over the lazy dog";
+                break;
+            case "int":
+                value = 42;
+                break;
+            case "long":
+                value = 42L;
+                break;
+            case "boolean":
+                value = true;
+                break;
+            case "float":
+                value = 4.2f;
+                break;
+            default:
+                final Set<String> set = new HashSet<>();
+                for (int i = 0; i < 16; i++) {
+                    set.add("element_" + i);
+                }
+                value = set;
+        }
+
+        typeTag = TypeUtil.getType(value);
+
+        // String sets are received from a DataMap as lists
+        received = value instanceof Set ? new ArrayList<>((Set) value) : value;
+
+        dataMap = new DataMap();
+        editor = new InMemorySharedPreferences().edit();
+    }
+
+    @Benchmark public DataMap saveToDataMap() {
+        TypeUtil.saveObject(dataMap, "key", value);
+        return dataMap;
+    }
+
+    @Benchmark public SharedPreferences.Editor saveToEditor() {
+        TypeUtil.saveObject(editor, "key", received);
+        return editor;
+    }
+
+    @Benchmark public DataMap saveTaggedToDataMap() {
+        TypeUtil.saveObject(dataMap, "key", typeTag, value);
+        return dataMap;
+    }
+
+    @Benchmark public SharedPreferences.Editor saveTaggedToEditor() {
+        TypeUtil.saveObject(editor, "key", typeTag, TypeUtil.convert(received, typeTag));
+        return editor;
+    }
+
+}
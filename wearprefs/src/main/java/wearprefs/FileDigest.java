@@ -0,0 +1,129 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A two-level hash tree over the synchronized entries of a file, so that two devices
+ * can tell whether their values differ, and which keys differ, without reading them.
+ *
+ * Keys are spread over {@link #BUCKETS} buckets by the fingerprint of the key. Each
+ * bucket's digest is the XOR of the fingerprints of its entries, so it is updated in
+ * constant time as values change, and the root digest combines the bucket digests.
+ * Equal roots mean the files hold the same values; otherwise only keys in buckets
+ * whose digests differ need to be compared.
+ */
+final class FileDigest {
+
+    /** The number of buckets. Must be a power of two, and the same on every device. */
+    static final int BUCKETS = 64;
+
+    private static final int BUCKET_SHIFT = 64 - Integer.numberOfTrailingZeros(BUCKETS);
+
+    /** The digest of each bucket */
+    @NonNull private final long[] mBuckets = new long[BUCKETS];
+
+    /** The entry fingerprint of each key, so that it can be removed from its bucket */
+    @NonNull private final Map<String, Long> mEntries = new HashMap<>();
+
+    /** Whether the digest has been computed from the file's values */
+    private boolean mLoaded;
+
+    /**
+     * Computes the digest from all of the file's synchronized values, the first time it is needed.
+     * Until then, changes aren't tracked. Called on the inbound lane, so that no received values are being saved.
+     */
+    synchronized void load(@NonNull final SyncedFile file){
+        if(mLoaded){
+            return;
+        }
+
+        for(Map.Entry<String, ?> entry:file.prefs.getAll().entrySet()){
+            if(file.options.isKeySynced(entry.getKey())){
+                put(entry.getKey(), Fingerprint.of(entry.getValue()));
+            }
+        }
+        mLoaded = true;
+    }
+
+    /** Whether the digest has been computed, and is being kept up to date */
+    synchronized boolean isLoaded(){
+        return mLoaded;
+    }
+
+    /**
+     * Records the current value of a key.
+     *
+     * @param valueFingerprint  The fingerprint of the value, or {@link Fingerprint#REMOVED}.
+     */
+    synchronized void update(@NonNull final String key, final long valueFingerprint){
+        if(mLoaded){
+            put(key, valueFingerprint);
+        }
+    }
+
+    private void put(@NonNull final String key, final long valueFingerprint){
+        final long keyFingerprint = Fingerprint.ofKey(key);
+        final int bucket = bucketOf(keyFingerprint);
+
+        final Long previous = valueFingerprint==Fingerprint.REMOVED
+                ? mEntries.remove(key)
+                : mEntries.put(key, Fingerprint.ofEntry(keyFingerprint, valueFingerprint));
+
+        if(previous!=null){
+            mBuckets[bucket] ^= previous;
+        }
+        if(valueFingerprint!=Fingerprint.REMOVED){
+            mBuckets[bucket] ^= mEntries.get(key);
+        }
+    }
+
+    /** A copy of the bucket digests */
+    @NonNull synchronized long[] getBuckets(){
+        return mBuckets.clone();
+    }
+
+    /** Combines bucket digests into the root digest */
+    static long rootOf(@NonNull final long[] buckets){
+        long root = buckets.length;
+        for(long bucket:buckets){
+            root = Fingerprint.ofEntry(root, bucket);
+        }
+        return root;
+    }
+
+    /**
+     * Marks the buckets whose digests differ between this file and another device's.
+     *
+     * @param divergent The buckets found to differ so far, which are marked.
+     * @return Whether any bucket differs.
+     */
+    static boolean markDivergent(@NonNull final long[] local, final long localRoot,
+                                 @Nullable final long[] remote, final long remoteRoot,
+                                 @NonNull final boolean[] divergent){
+        if(remote!=null && remote.length==BUCKETS && remoteRoot==localRoot){
+            return false;
+        }
+
+        // An unreadable digest matches nothing
+        for(int i=0; i<BUCKETS; i++){
+            if(remote==null || remote.length!=BUCKETS || remote[i]!=local[i]){
+                divergent[i] = true;
+            }
+        }
+        return true;
+    }
+
+    /** The bucket of the given key */
+    static int bucketOf(@NonNull final String key){
+        return bucketOf(Fingerprint.ofKey(key));
+    }
+
+    private static int bucketOf(final long keyFingerprint){
+        return (int) (keyFingerprint >>> BUCKET_SHIFT);
+    }
+
+}
@@ -0,0 +1,109 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+
+/**
+ * Computes compact 64-bit fingerprints of preference values, so that
+ * values can be compared without keeping a copy of them.
+ *
+ * Equal values have equal fingerprints regardless of whether they were
+ * read from SharedPreferences or from a DataMap, so a string set and a list
+ * containing the same strings (in any order) have the same fingerprint.
+ */
+final class Fingerprint {
+
+    /** The fingerprint of a removed (absent) value */
+    static final long REMOVED = 0L;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Seeds distinguishing types, so that e.g. 1 and 1L and "1" differ
+    private static final long SEED_STRING = 1;
+    private static final long SEED_INT = 2;
+    private static final long SEED_BOOLEAN = 3;
+    private static final long SEED_LONG = 4;
+    private static final long SEED_FLOAT = 5;
+    private static final long SEED_STRING_SET = 6;
+
+    private Fingerprint(){}
+
+    /** Computes the fingerprint of the given preference value */
+    static long of(@Nullable final Object value){
+        return of(TypeUtil.typeOf(value), value);
+    }
+
+    /**
+     * Computes the fingerprint of the given preference value, whose type is already known.
+     *
+     * @param type  The value's {@link TypeUtil} type tag.
+     */
+    static long of(final int type, @Nullable final Object value){
+        final long fingerprint;
+
+        switch(type){
+            case TypeUtil.TYPE_NONE:
+                return REMOVED;
+            case TypeUtil.TYPE_STRING:
+                fingerprint = mix(SEED_STRING ^ ofString((String) value));
+                break;
+            case TypeUtil.TYPE_INT:
+                fingerprint = mix(SEED_INT ^ mix((Integer) value));
+                break;
+            case TypeUtil.TYPE_BOOLEAN:
+                fingerprint = mix(SEED_BOOLEAN ^ ((Boolean) value ? 1 : 2));
+                break;
+            case TypeUtil.TYPE_LONG:
+                fingerprint = mix(SEED_LONG ^ mix((Long) value));
+                break;
+            case TypeUtil.TYPE_FLOAT:
+                fingerprint = mix(SEED_FLOAT ^ mix(Float.floatToIntBits((Float) value)));
+                break;
+            case TypeUtil.TYPE_STRING_SET:
+                // Order-independent, as sets have no defined order
+                long sum = 0;
+                for(Object element:(Collection) value){
+                    sum += mix(ofString(String.valueOf(element)));
+                }
+                fingerprint = mix(SEED_STRING_SET ^ mix(sum + ((Collection) value).size()));
+                break;
+            default:
+                fingerprint = mix(value==null ? 0 : value.hashCode());
+        }
+
+        // Never collide with the fingerprint of a removed value
+        return fingerprint==REMOVED ? 1 : fingerprint;
+    }
+
+    /** Computes the fingerprint of a preference key */
+    static long ofKey(@NonNull final String key){
+        return mix(ofString(key));
+    }
+
+    /** Combines the fingerprints of a key and its value into the fingerprint of the entry */
+    static long ofEntry(final long keyFingerprint, final long valueFingerprint){
+        return mix(keyFingerprint ^ mix(valueFingerprint));
+    }
+
+    /** 64-bit FNV-1a hash of the characters of the given string */
+    private static long ofString(final String string){
+        long hash = FNV_OFFSET_BASIS;
+        for(int i = 0; i < string.length(); i++){
+            final char c = string.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Spreads the bits of the given value (the SplitMix64 finalizer) */
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
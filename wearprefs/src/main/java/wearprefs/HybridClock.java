@@ -0,0 +1,79 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A hybrid logical clock, for ordering changes made on different devices.
+ *
+ * Timestamps combine the wall clock time in milliseconds (the upper 48 bits) with a
+ * counter (the lower 16 bits), so they can be compared as longs. Each timestamp is
+ * greater than every timestamp this clock has issued or received before, so a change
+ * made after receiving another change is always ordered after it, even if the
+ * devices' wall clocks differ.
+ */
+final class HybridClock {
+
+    /** The number of bits used by the counter */
+    private static final int COUNTER_BITS = 16;
+
+    /** The version of a value, which orders concurrent changes to it */
+    static final class Version {
+
+        /** The timestamp of the change */
+        final long clock;
+
+        /** The id of the device that made the change */
+        @NonNull final String origin;
+
+        Version(final long clock, @NonNull final String origin){
+            this.clock = clock;
+            this.origin = origin;
+        }
+
+        /**
+         * Whether this version should replace the given one. Later timestamps win,
+         * and the greater origin wins ties, so every device makes the same choice.
+         */
+        boolean isNewerThan(@Nullable final Version other){
+            if(other==null){
+                return true;
+            }else if(clock!=other.clock){
+                return clock > other.clock;
+            }
+            return origin.compareTo(other.origin) > 0;
+        }
+
+        @Override public boolean equals(final Object o) {
+            if(!(o instanceof Version)){
+                return false;
+            }
+            final Version other = (Version) o;
+            return clock==other.clock && origin.equals(other.origin);
+        }
+
+        @Override public int hashCode() {
+            return 31 * (int) (clock ^ (clock >>> 32)) + origin.hashCode();
+        }
+
+    }
+
+    /** The last timestamp issued or received */
+    private long mLast;
+
+    /** Issues a timestamp for a change made on this device */
+    synchronized long now(){
+        mLast = Math.max(mLast + 1, physicalNow());
+        return mLast;
+    }
+
+    /** Advances the clock past a timestamp received from another device */
+    synchronized void update(final long received){
+        mLast = Math.max(Math.max(mLast, received) + 1, physicalNow());
+    }
+
+    private static long physicalNow(){
+        return System.currentTimeMillis() << COUNTER_BITS;
+    }
+
+}
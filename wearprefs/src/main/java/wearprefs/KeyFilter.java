@@ -0,0 +1,147 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which preference keys are synchronized, from include and exclude rules.
+ *
+ * A rule is either an exact key, a prefix ending in a single trailing <code>*</code>,
+ * or a glob, in which <code>*</code> matches any characters and <code>?</code> matches
+ * a single character. Rules are compiled once, so that exact keys are checked with a
+ * hash lookup and prefixes without creating a regular expression.
+ */
+final class KeyFilter {
+
+    /** Accepts every key */
+    static final KeyFilter ALL = new KeyFilter(Rules.NONE, Rules.NONE);
+
+    @NonNull private final Rules mIncludes;
+    @NonNull private final Rules mExcludes;
+
+    private KeyFilter(@NonNull final Rules includes, @NonNull final Rules excludes){
+        mIncludes = includes;
+        mExcludes = excludes;
+    }
+
+    /**
+     * Compiles the given rules.
+     *
+     * @param includes  The keys to synchronize. If empty, all keys are included.
+     * @param excludes  The keys not to synchronize, even if they are included.
+     */
+    @NonNull static KeyFilter compile(@NonNull final Collection<String> includes,
+                                      @NonNull final Collection<String> excludes){
+        if(includes.isEmpty() && excludes.isEmpty()){
+            return ALL;
+        }
+        return new KeyFilter(Rules.compile(includes), Rules.compile(excludes));
+    }
+
+    /** Whether the given key should be synchronized */
+    boolean accepts(@NonNull final String key){
+        return (mIncludes.isEmpty() || mIncludes.matches(key)) && !mExcludes.matches(key);
+    }
+
+    /** A compiled set of rules, matching a key if any rule matches it */
+    private static final class Rules {
+
+        static final Rules NONE = new Rules(new HashSet<String>(), new String[0], new Pattern[0]);
+
+        @NonNull private final Set<String> mExact;
+        @NonNull private final String[] mPrefixes;
+        @NonNull private final Pattern[] mGlobs;
+
+        private Rules(@NonNull final Set<String> exact, @NonNull final String[] prefixes,
+                      @NonNull final Pattern[] globs){
+            mExact = exact;
+            mPrefixes = prefixes;
+            mGlobs = globs;
+        }
+
+        static Rules compile(@NonNull final Collection<String> rules){
+            if(rules.isEmpty()){
+                return NONE;
+            }
+
+            final Set<String> exact = new HashSet<>();
+            final List<String> prefixes = new ArrayList<>();
+            final List<Pattern> globs = new ArrayList<>();
+
+            for(String rule:rules){
+                final int wildcard = firstWildcard(rule);
+
+                if(wildcard<0){
+                    exact.add(rule);
+                }else if(wildcard==rule.length()-1 && rule.charAt(wildcard)=='*'){
+                    prefixes.add(rule.substring(0, wildcard));
+                }else{
+                    globs.add(toPattern(rule));
+                }
+            }
+
+            return new Rules(exact, prefixes.toArray(new String[prefixes.size()]),
+                    globs.toArray(new Pattern[globs.size()]));
+        }
+
+        boolean isEmpty(){
+            return mExact.isEmpty() && mPrefixes.length==0 && mGlobs.length==0;
+        }
+
+        boolean matches(@NonNull final String key){
+            if(mExact.contains(key)){
+                return true;
+            }
+            for(String prefix:mPrefixes){
+                if(key.startsWith(prefix)){
+                    return true;
+                }
+            }
+            for(Pattern glob:mGlobs){
+                if(glob.matcher(key).matches()){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int firstWildcard(@NonNull final String rule){
+            for(int i=0; i<rule.length(); i++){
+                final char c = rule.charAt(i);
+                if(c=='*' || c=='?'){
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static Pattern toPattern(@NonNull final String glob){
+            final StringBuilder regex = new StringBuilder();
+            int literalStart = 0;
+
+            for(int i=0; i<glob.length(); i++){
+                final char c = glob.charAt(i);
+                if(c=='*' || c=='?'){
+                    if(i>literalStart){
+                        regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                    }
+                    regex.append(c=='*'?".*":".");
+                    literalStart = i+1;
+                }
+            }
+            if(literalStart<glob.length()){
+                regex.append(Pattern.quote(glob.substring(literalStart)));
+            }
+
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+    }
+
+}
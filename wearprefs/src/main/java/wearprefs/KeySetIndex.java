@@ -0,0 +1,225 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.wearable.DataMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory copy of the key set for each path prefix.
+ *
+ * Each key set is loaded from the DataApi the first time it is needed,
+ * and then maintained incrementally. It is only written back when keys
+ * have been added or removed, and all changes made before a flush are
+ * written together.
+ *
+ * Removed keys leave a tombstone with the time they were removed, so that
+ * other devices don't add them back. Tombstones are dropped once they expire,
+ * so that the key set only grows with the keys that are still in use.
+ */
+final class KeySetIndex {
+
+    /** Marks a key added while its key set was loading, in place of a removal time */
+    private static final long ADDED = -1;
+
+    @NonNull private final Transport mTransport;
+    @NonNull private final MetricsRecorder mMetrics;
+
+    /** Run when keys changed while their key set was loading need to be flushed */
+    @NonNull private final Runnable mFlushRequest;
+
+    /** The known keys for each path prefix */
+    @NonNull private final Map<String, Set<String>> mKeySets = new HashMap<>();
+
+    /** The removal time of each removed key, for each path prefix */
+    @NonNull private final Map<String, Map<String, Long>> mTombstones = new HashMap<>();
+
+    /**
+     * Keys changed in each key set that is still being loaded, mapped
+     * to the time they were removed, or to {@link #ADDED}
+     */
+    @NonNull private final Map<String, Map<String, Long>> mLoadingChanges = new HashMap<>();
+
+    /** Path prefixes whose key set has changes that have not yet been written */
+    @NonNull private final Set<String> mDirtyPathPrefixes = new LinkedHashSet<>();
+
+    /**
+     * @param flushRequest  Run when keys have been changed that need to be flushed,
+     *                      after their key set finished loading.
+     */
+    KeySetIndex(@NonNull final Transport transport, @NonNull final MetricsRecorder metrics,
+                @NonNull final Runnable flushRequest){
+        mTransport = transport;
+        mMetrics = metrics;
+        mFlushRequest = flushRequest;
+    }
+
+    /**
+     * Adds the given key to the key set for the given path prefix, removing its tombstone.
+     * Starts loading the key set if this is the first time it has been used,
+     * without waiting for it to load.
+     *
+     * @return true if the key was not previously in the key set, and a flush is required.
+     *         Keys added while their key set is loading return false, and the flush
+     *         request is run once it has loaded instead.
+     */
+    boolean add(@NonNull final String pathPrefix, @NonNull final String key){
+        return change(pathPrefix, key, ADDED);
+    }
+
+    /**
+     * Removes the given key from the key set for the given path prefix, leaving a tombstone.
+     *
+     * @param removedAtMillis   When the key was removed, by {@link System#currentTimeMillis()}.
+     * @return true if the key set changed, and a flush is required, as for {@link #add(String, String)}.
+     */
+    boolean remove(@NonNull final String pathPrefix, @NonNull final String key, final long removedAtMillis){
+        return change(pathPrefix, key, removedAtMillis);
+    }
+
+    /**
+     * Drops the tombstones of keys removed before the given time from the key set for
+     * the given path prefix. Starts loading the key set if it hasn't been loaded, in which
+     * case its tombstones are dropped the next time this is called.
+     *
+     * @return The keys whose tombstones were dropped. A flush is required if there are any.
+     */
+    @NonNull List<String> expireTombstones(@NonNull final String pathPrefix, final long removedBeforeMillis){
+        synchronized (this) {
+            final Map<String, Long> tombstones = mTombstones.get(pathPrefix);
+            if(tombstones!=null) {
+                final List<String> expired = new ArrayList<>();
+                final Iterator<Map.Entry<String, Long>> iterator = tombstones.entrySet().iterator();
+                while(iterator.hasNext()){
+                    final Map.Entry<String, Long> tombstone = iterator.next();
+                    if(tombstone.getValue()<removedBeforeMillis){
+                        expired.add(tombstone.getKey());
+                        iterator.remove();
+                    }
+                }
+
+                if(!expired.isEmpty()) {
+                    mDirtyPathPrefixes.add(pathPrefix);
+                }
+                return expired;
+            }
+
+            if(mLoadingChanges.containsKey(pathPrefix)) {
+                return Collections.emptyList();
+            }
+            mLoadingChanges.put(pathPrefix, new LinkedHashMap<String, Long>());
+        }
+
+        load(pathPrefix);
+        return Collections.emptyList();
+    }
+
+    /** Writes every key set that has changed since the last flush */
+    void flush(){
+        final Map<String, ArrayList<String>> toWrite = new HashMap<>();
+        final Map<String, Map<String, Long>> tombstonesToWrite = new HashMap<>();
+        synchronized (this) {
+            for (String pathPrefix : mDirtyPathPrefixes) {
+                toWrite.put(pathPrefix, new ArrayList<>(mKeySets.get(pathPrefix)));
+                tombstonesToWrite.put(pathPrefix, new HashMap<>(mTombstones.get(pathPrefix)));
+            }
+            mDirtyPathPrefixes.clear();
+        }
+
+        for(Map.Entry<String, ArrayList<String>> entry:toWrite.entrySet()) {
+            KeySetUtil.setKeySet(mTransport, entry.getKey(), entry.getValue(), tombstonesToWrite.get(entry.getKey()));
+            mMetrics.keySetAccess(entry.getKey(), entry.getValue().size(), true);
+        }
+    }
+
+    /**
+     * Adds or removes a key, or records the change until its key set has loaded.
+     *
+     * @param removedAtMillis   When the key was removed, or {@link #ADDED}.
+     */
+    private boolean change(@NonNull final String pathPrefix, @NonNull final String key, final long removedAtMillis){
+        synchronized (this) {
+            final Set<String> keySet = mKeySets.get(pathPrefix);
+            if (keySet != null) {
+                if (apply(keySet, mTombstones.get(pathPrefix), key, removedAtMillis)) {
+                    mDirtyPathPrefixes.add(pathPrefix);
+                    return true;
+                }
+                return false;
+            }
+
+            final Map<String, Long> loadingChanges = mLoadingChanges.get(pathPrefix);
+            if (loadingChanges != null) {
+                loadingChanges.put(key, removedAtMillis);
+                return false;
+            }
+
+            final Map<String, Long> changes = new LinkedHashMap<>();
+            changes.put(key, removedAtMillis);
+            mLoadingChanges.put(pathPrefix, changes);
+        }
+
+        load(pathPrefix);
+        return false;
+    }
+
+    /**
+     * Applies an addition or removal to a loaded key set.
+     *
+     * @return Whether the key set or its tombstones changed.
+     */
+    private static boolean apply(@NonNull final Set<String> keySet, @NonNull final Map<String, Long> tombstones,
+                                 @NonNull final String key, final long removedAtMillis){
+        if(removedAtMillis==ADDED){
+            final boolean added = keySet.add(key);
+            return tombstones.remove(key)!=null || added;
+        }
+
+        // Keep the earliest removal time, so that the tombstone expires on schedule
+        final boolean removed = keySet.remove(key);
+        if(!tombstones.containsKey(key)){
+            tombstones.put(key, removedAtMillis);
+            return true;
+        }
+        return removed;
+    }
+
+    private void load(@NonNull final String pathPrefix){
+        mTransport.getDataMaps(pathPrefix, new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull final List<DataMap> items) {
+                final Set<String> loaded = KeySetUtil.getKeySetFromAllNodes(items);
+                final Map<String, Long> tombstones = KeySetUtil.getTombstonesFromAllNodes(items);
+                loaded.removeAll(tombstones.keySet());
+                mMetrics.keySetAccess(pathPrefix, loaded.size(), false);
+
+                boolean dirty = false;
+                synchronized (KeySetIndex.this) {
+                    final Map<String, Long> loadingChanges = mLoadingChanges.remove(pathPrefix);
+                    for(Map.Entry<String, Long> change:loadingChanges.entrySet()){
+                        dirty |= apply(loaded, tombstones, change.getKey(), change.getValue());
+                    }
+
+                    mKeySets.put(pathPrefix, loaded);
+                    mTombstones.put(pathPrefix, tombstones);
+                    if (dirty) {
+                        mDirtyPathPrefixes.add(pathPrefix);
+                    }
+                }
+
+                if(dirty) {
+                    mFlushRequest.run();
+                }
+            }
+        });
+    }
+
+}
@@ -1,53 +1,125 @@
 package wearprefs;
 
-import android.net.Uri;
+import android.support.annotation.NonNull;
 
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.Wearable;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 public class KeySetUtil {
 
     private static final String KEY_KEY_SET = "key_set";
+    private static final String KEY_TOMBSTONES = "tombstones";
 
+    /** Reads the key set at the given path. Blocks, so must not be called on the main thread. */
     public static ArrayList<String> getKeySet(GoogleApiClient apiClient, String path) {
-        final DataItemBuffer buffer = Wearable.DataApi.getDataItems(
-                apiClient,
-                Uri.parse("wear:" + path))
-                .await();
+        return getKeySet(new WearableTransport(apiClient), path);
+    }
 
-        ArrayList<String> keySet = null;
-        try {
-            if (buffer.getCount() > 0) {
-                final DataMap map = DataMap.fromByteArray(buffer.get(0).getData());
-                keySet = map.getStringArrayList(KEY_KEY_SET);
+    static ArrayList<String> getKeySet(Transport transport, String path) {
+        final List<DataMap> items = awaitDataMaps(transport, path);
+
+        final ArrayList<String> keySet = items.isEmpty() ? null : items.get(0).getStringArrayList(KEY_KEY_SET);
+        return keySet==null?new ArrayList<String>():keySet;
+    }
+
+    /**
+     * Retrieves the union of the key sets in the given items, published at the same path by all connected nodes.
+     */
+    static Set<String> getKeySetFromAllNodes(List<DataMap> items) {
+        final Set<String> keySet = new HashSet<>();
+
+        for(DataMap item:items) {
+            final ArrayList<String> nodeKeySet = item.getStringArrayList(KEY_KEY_SET);
+            if(nodeKeySet!=null) {
+                keySet.addAll(nodeKeySet);
             }
-        }finally {
-            buffer.release();
         }
 
-        return keySet==null?new ArrayList<String>():keySet;
+        return keySet;
+    }
+
+    /**
+     * Retrieves the tombstones in the given items, published at the same path by all connected nodes.
+     * Each removed key is mapped to the latest time it was removed, in milliseconds.
+     */
+    static Map<String, Long> getTombstonesFromAllNodes(List<DataMap> items) {
+        final Map<String, Long> tombstones = new HashMap<>();
+
+        for(DataMap item:items) {
+            final DataMap nodeTombstones = item.getDataMap(KEY_TOMBSTONES);
+            if(nodeTombstones!=null) {
+                for(String key:nodeTombstones.keySet()) {
+                    final long removedAt = nodeTombstones.getLong(key);
+                    final Long previous = tombstones.get(key);
+                    if(previous==null || previous<removedAt) {
+                        tombstones.put(key, removedAt);
+                    }
+                }
+            }
+        }
+
+        return tombstones;
+    }
+
+    static void setKeySet(Transport transport, String path, Collection<String> keySet) {
+        setKeySet(transport, path, keySet, Collections.<String, Long>emptyMap());
     }
 
-    private static void setKeySet(GoogleApiClient apiClient, String path, ArrayList<String> keySet) {
-        final PutDataMapRequest request = PutDataMapRequest.create(path);
-        final DataMap dataMap = request.getDataMap();
-        dataMap.putStringArrayList(KEY_KEY_SET, keySet);
+    /** Writes the key set at the given path, with the times that removed keys were removed */
+    static void setKeySet(Transport transport, String path, Collection<String> keySet, Map<String, Long> tombstones) {
+        final DataMap dataMap = new DataMap();
+        dataMap.putStringArrayList(KEY_KEY_SET, new ArrayList<>(keySet));
 
-        Wearable.DataApi.putDataItem(apiClient, request.asPutDataRequest()).await();
+        if(!tombstones.isEmpty()) {
+            final DataMap tombstoneMap = new DataMap();
+            for(Map.Entry<String, Long> tombstone:tombstones.entrySet()) {
+                tombstoneMap.putLong(tombstone.getKey(), tombstone.getValue());
+            }
+            dataMap.putDataMap(KEY_TOMBSTONES, tombstoneMap);
+        }
+
+        transport.putDataMap(path, dataMap, null);
     }
 
+    /** Adds a key to the key set at the given path. Blocks, so must not be called on the main thread. */
     public static void addToKeySet(GoogleApiClient apiClient, String path, String key) {
-        final ArrayList<String> keySet = getKeySet(apiClient, path);
+        final Transport transport = new WearableTransport(apiClient);
+        final ArrayList<String> keySet = getKeySet(transport, path);
 
         if(!keySet.contains(key)){
             keySet.add(key);
-            setKeySet(apiClient, path, keySet);
+            setKeySet(transport, path, keySet);
+        }
+    }
+
+    /** Reads the items at the given path, waiting for the result */
+    private static List<DataMap> awaitDataMaps(Transport transport, String path) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<DataMap> result = new ArrayList<>();
+
+        transport.getDataMaps(path, new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull List<DataMap> items) {
+                result.addAll(items);
+                done.countDown();
+            }
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return result;
     }
 
 }
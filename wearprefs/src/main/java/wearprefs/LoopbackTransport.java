@@ -0,0 +1,410 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory {@link Transport}, for running and measuring synchronization without devices.
+ *
+ * Transports created from the same {@link Network} behave like devices connected
+ * through the Wearable DataApi: each keeps a replica of every device's items, and
+ * items written by one device reach the others after the network's simulated latency.
+ *
+ * <pre>
+ * LoopbackTransport.Network network = new LoopbackTransport.Network(20);
+ * Transport handheld = network.createNode("handheld");
+ * Transport wearable = network.createNode("wearable");
+ * </pre>
+ */
+public final class LoopbackTransport implements Transport {
+
+    /** A simulated connection between the transports created from it */
+    public static final class Network {
+
+        private final long mLatencyMillis;
+        @NonNull private final List<LoopbackTransport> mConnectedNodes = new CopyOnWriteArrayList<>();
+        @NonNull private final ScheduledThreadPoolExecutor mDelivery;
+
+        /** Creates a network that delivers items without delay */
+        public Network(){
+            this(0);
+        }
+
+        /**
+         * Creates a network that delivers items to other devices after the given delay.
+         *
+         * @param latencyMillis The simulated time taken to deliver an item to another device.
+         */
+        public Network(final long latencyMillis){
+            mLatencyMillis = latencyMillis;
+            mDelivery = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(@NonNull final Runnable r) {
+                    final Thread thread = new Thread(r, "WearPrefs-loopback");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /** Creates a transport for a simulated device with the given id */
+        public LoopbackTransport createNode(@NonNull final String nodeId){
+            return new LoopbackTransport(this, nodeId);
+        }
+
+        /** Stops delivering items and notifications */
+        public void shutdown(){
+            mDelivery.shutdownNow();
+        }
+
+        private void join(@NonNull final LoopbackTransport node){
+            for(LoopbackTransport peer:mConnectedNodes){
+                // Exchange items written while disconnected
+                replicate(peer, node, peer.getOwnItems());
+                replicate(node, peer, node.getOwnItems());
+
+                notifyPeerConnected(peer, node.mNodeId);
+                notifyPeerConnected(node, peer.mNodeId);
+            }
+            mConnectedNodes.add(node);
+
+            deliver(node, 0, new Runnable() {
+                @Override public void run() {
+                    final Listener listener = node.mListener;
+                    if(listener!=null) {
+                        listener.onConnected();
+                    }
+                }
+            });
+        }
+
+        private void leave(@NonNull final LoopbackTransport node){
+            mConnectedNodes.remove(node);
+
+            for(final LoopbackTransport peer:mConnectedNodes){
+                deliver(peer, 0, new Runnable() {
+                    @Override public void run() {
+                        final Listener listener = peer.mListener;
+                        if(listener!=null) {
+                            listener.onPeerDisconnected(node.mNodeId);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Delivers an item written by the given node to every connected node, including itself.
+         * A null item is a deletion.
+         */
+        private void publish(@NonNull final LoopbackTransport source, @NonNull final String path,
+                             @Nullable final Item item){
+            final Map<String, Item> items = Collections.singletonMap(path, item);
+
+            for(LoopbackTransport node:mConnectedNodes){
+                replicate(source, node, items);
+            }
+        }
+
+        private void replicate(@NonNull final LoopbackTransport source,
+                               @NonNull final LoopbackTransport destination,
+                               @NonNull final Map<String, Item> items){
+            if(items.isEmpty()){
+                return;
+            }
+
+            final long latency = source==destination ? 0 : mLatencyMillis;
+            deliver(destination, latency, new Runnable() {
+                @Override public void run() {
+                    destination.receive(source.mNodeId, items);
+                }
+            });
+        }
+
+        private void notifyPeerConnected(@NonNull final LoopbackTransport node, @NonNull final String peerId){
+            deliver(node, mLatencyMillis, new Runnable() {
+                @Override public void run() {
+                    final Listener listener = node.mListener;
+                    if(listener!=null) {
+                        listener.onPeerConnected(peerId);
+                    }
+                }
+            });
+        }
+
+        private void deliver(@NonNull final LoopbackTransport node, final long delayMillis,
+                             @NonNull final Runnable delivery){
+            if(!mDelivery.isShutdown()) {
+                mDelivery.schedule(delivery, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+    }
+
+    /**
+     * An item as it is sent between devices: its encoded DataMap, in which each Asset
+     * is replaced by its index in the item's Assets, as Assets aren't encoded.
+     */
+    private static final class Item {
+
+        @NonNull final byte[] data;
+        @NonNull final List<Asset> assets;
+
+        Item(@NonNull final byte[] data, @NonNull final List<Asset> assets){
+            this.data = data;
+            this.assets = assets;
+        }
+
+    }
+
+    /** Replaces an Asset in an encoded item, holding its index in the item's Assets */
+    private static final String KEY_ASSET_INDEX = "loopback_asset_index";
+
+    @NonNull private final Network mNetwork;
+    @NonNull private final String mNodeId;
+
+    /** This device's replica of every device's items, by path and then by node id */
+    @NonNull private final TreeMap<String, Map<String, Item>> mItems = new TreeMap<>();
+
+    @Nullable private volatile Listener mListener;
+
+    private LoopbackTransport(@NonNull final Network network, @NonNull final String nodeId){
+        mNetwork = network;
+        mNodeId = nodeId;
+    }
+
+    /** The id of the simulated device */
+    @NonNull public String getNodeId(){
+        return mNodeId;
+    }
+
+    @Override public void connect(@NonNull final Listener listener) {
+        mListener = listener;
+        mNetwork.join(this);
+    }
+
+    @Override public void disconnect() {
+        mNetwork.leave(this);
+        mListener = null;
+    }
+
+    @NonNull @Override public String getLocalNodeId() {
+        return mNodeId;
+    }
+
+    @Override public int putDataMap(@NonNull final String path, @NonNull final DataMap dataMap,
+                                    @Nullable final WriteCallback callback) {
+        // Items are stored encoded, as they would be sent between devices
+        final List<Asset> assets = new ArrayList<>();
+        final Item item = new Item(extractAssets(dataMap, assets).toByteArray(), assets);
+        store(mNodeId, path, item);
+
+        if(mListener!=null) {
+            mNetwork.publish(this, path, item);
+        }
+
+        // Written as soon as it is in this device's replica
+        if(callback!=null) {
+            callback.onComplete(true);
+        }
+        return item.data.length;
+    }
+
+    @Override public void deleteDataMap(@NonNull final String path, @Nullable final WriteCallback callback) {
+        unstore(mNodeId, path);
+
+        if(mListener!=null) {
+            mNetwork.publish(this, path, null);
+        }
+
+        if(callback!=null) {
+            callback.onComplete(true);
+        }
+    }
+
+    @Override public void getDataMaps(@NonNull final String path, @NonNull final ReadCallback callback) {
+        final List<Item> found = new ArrayList<>();
+        synchronized (mItems) {
+            final Map<String, Item> nodeItems = mItems.get(path);
+            if(nodeItems!=null) {
+                found.addAll(nodeItems.values());
+            }
+        }
+
+        callback.onResult(decode(found));
+    }
+
+    @Override public void getDataMapsWithPrefix(@NonNull final String pathPrefix, @NonNull final ReadCallback callback) {
+        final List<Item> found = new ArrayList<>();
+        synchronized (mItems) {
+            for(Map<String, Item> nodeItems:mItems.subMap(pathPrefix, pathPrefix + Character.MAX_VALUE).values()) {
+                found.addAll(nodeItems.values());
+            }
+        }
+
+        callback.onResult(decode(found));
+    }
+
+    @Override public void getDataMapsFromNode(@NonNull final String nodeId, @NonNull final String path,
+                                              @NonNull final ReadCallback callback) {
+        final List<Item> found = new ArrayList<>();
+        synchronized (mItems) {
+            final Map<String, Item> nodeItems = mItems.get(path);
+            if(nodeItems!=null && nodeItems.containsKey(nodeId)) {
+                found.add(nodeItems.get(nodeId));
+            }
+        }
+
+        callback.onResult(decode(found));
+    }
+
+    @Override public void getDataMapsFromNodeWithPrefix(@NonNull final String nodeId, @NonNull final String pathPrefix,
+                                                        @NonNull final ReadCallback callback) {
+        final List<Item> found = new ArrayList<>();
+        synchronized (mItems) {
+            for(Map<String, Item> nodeItems:mItems.subMap(pathPrefix, pathPrefix + Character.MAX_VALUE).values()) {
+                final Item item = nodeItems.get(nodeId);
+                if(item!=null) {
+                    found.add(item);
+                }
+            }
+        }
+
+        callback.onResult(decode(found));
+    }
+
+    @NonNull @Override public InputStream openAsset(@NonNull final Asset asset) throws IOException {
+        // Assets are only created in memory, from their contents
+        final byte[] data = asset.getData();
+        if(data==null){
+            throw new IOException("Asset has no data");
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    @NonNull private static List<DataMap> decode(@NonNull final List<Item> found){
+        final List<DataMap> items = new ArrayList<>(found.size());
+        for(Item item:found){
+            items.add(decode(item));
+        }
+        return items;
+    }
+
+    @NonNull private static DataMap decode(@NonNull final Item item){
+        return restoreAssets(DataMap.fromByteArray(item.data), item.assets);
+    }
+
+    /** Copies the given DataMap, replacing each Asset, including in nested DataMaps, with its index in the given list */
+    @NonNull private static DataMap extractAssets(@NonNull final DataMap dataMap, @NonNull final List<Asset> assets){
+        final DataMap copy = new DataMap();
+        copy.putAll(dataMap);
+
+        for(String key:dataMap.keySet()){
+            final Object value = dataMap.get(key);
+            if(value instanceof Asset){
+                final DataMap placeholder = new DataMap();
+                placeholder.putInt(KEY_ASSET_INDEX, assets.size());
+                assets.add((Asset) value);
+                copy.putDataMap(key, placeholder);
+            }else if(value instanceof DataMap){
+                copy.putDataMap(key, extractAssets((DataMap) value, assets));
+            }
+        }
+        return copy;
+    }
+
+    /** Replaces the placeholders in a decoded DataMap with the Assets they stand for */
+    @NonNull private static DataMap restoreAssets(@NonNull final DataMap dataMap, @NonNull final List<Asset> assets){
+        if(assets.isEmpty()){
+            return dataMap;
+        }
+
+        for(String key:new ArrayList<>(dataMap.keySet())){
+            final DataMap value = dataMap.getDataMap(key);
+            if(value==null){
+                continue;
+            }
+
+            if(value.containsKey(KEY_ASSET_INDEX)){
+                dataMap.putAsset(key, assets.get(value.getInt(KEY_ASSET_INDEX)));
+            }else{
+                dataMap.putDataMap(key, restoreAssets(value, assets));
+            }
+        }
+        return dataMap;
+    }
+
+    /** Stores items delivered from the given node, and notifies the listener. Null items are deletions. */
+    private void receive(@NonNull final String sourceNodeId, @NonNull final Map<String, Item> items){
+        final List<DataMap> changedItems = new ArrayList<>();
+        for(Map.Entry<String, Item> item:items.entrySet()){
+            if(item.getValue()==null){
+                unstore(sourceNodeId, item.getKey());
+                continue;
+            }
+
+            store(sourceNodeId, item.getKey(), item.getValue());
+            changedItems.add(decode(item.getValue()));
+        }
+
+        // Deletions are not reported, as by the DataApi listener
+        final Listener listener = mListener;
+        if(listener!=null && !changedItems.isEmpty()) {
+            listener.onDataChanged(changedItems);
+        }
+    }
+
+    private void store(@NonNull final String nodeId, @NonNull final String path, @NonNull final Item item){
+        synchronized (mItems) {
+            Map<String, Item> nodeItems = mItems.get(path);
+            if(nodeItems==null) {
+                nodeItems = new HashMap<>();
+                mItems.put(path, nodeItems);
+            }
+            nodeItems.put(nodeId, item);
+        }
+    }
+
+    private void unstore(@NonNull final String nodeId, @NonNull final String path){
+        synchronized (mItems) {
+            final Map<String, Item> nodeItems = mItems.get(path);
+            if(nodeItems!=null) {
+                nodeItems.remove(nodeId);
+                if(nodeItems.isEmpty()) {
+                    mItems.remove(path);
+                }
+            }
+        }
+    }
+
+    /** Returns the items written by this device, by path */
+    @NonNull private Map<String, Item> getOwnItems(){
+        final Map<String, Item> ownItems = new HashMap<>();
+        synchronized (mItems) {
+            for(Map.Entry<String, Map<String, Item>> item:mItems.entrySet()) {
+                final Item ownItem = item.getValue().get(mNodeId);
+                if(ownItem!=null) {
+                    ownItems.put(item.getKey(), ownItem);
+                }
+            }
+        }
+        return ownItems;
+    }
+
+}
@@ -0,0 +1,187 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts synchronization events, and forwards them to the metrics listener.
+ */
+final class MetricsRecorder {
+
+    /** Key of the default SharedPreferences file, as ConcurrentHashMap does not accept null keys */
+    private static final String DEFAULT_FILE_KEY = "";
+
+    /** Records durations into power-of-two buckets */
+    static final class LatencyHistogram {
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(64);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(final long nanos){
+            final long value = Math.max(0, nanos);
+
+            mBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(value);
+
+            long max = mMax.get();
+            while(value>max && !mMax.compareAndSet(max, value)){
+                max = mMax.get();
+            }
+        }
+
+        SyncMetrics.Histogram snapshot(){
+            final long[] buckets = new long[mBuckets.length()];
+            for(int i = 0; i < buckets.length; i++){
+                buckets[i] = mBuckets.get(i);
+            }
+            return new SyncMetrics.Histogram(buckets, mCount.get(), mTotal.get(), mMax.get());
+        }
+
+    }
+
+    /** The largest value recorded in the given histogram bucket */
+    static long bucketUpperBound(final int bucket){
+        return bucket>=63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Nullable private volatile SyncMetricsListener mListener;
+
+    private final AtomicLong mOutboundPuts = new AtomicLong();
+    private final AtomicLong mInboundItems = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> mOutboundBytes = new ConcurrentHashMap<>();
+    private final AtomicLong mSkippedSends = new AtomicLong();
+    private final AtomicLong mSuppressedEchoes = new AtomicLong();
+    private final AtomicLong mDroppedStaleValues = new AtomicLong();
+    private final LatencyHistogram mChangeToPut = new LatencyHistogram();
+    private final LatencyHistogram mPutToRemoteApply = new LatencyHistogram();
+    private final LatencyHistogram mResyncs = new LatencyHistogram();
+    private final AtomicLong mKeySetReads = new AtomicLong();
+    private final AtomicLong mKeySetWrites = new AtomicLong();
+    private final AtomicLong mInitNanos = new AtomicLong();
+    private final AtomicLong mConnectNanos = new AtomicLong(-1);
+
+    void setListener(@Nullable final SyncMetricsListener listener){
+        mListener = listener;
+    }
+
+    void valuesSent(@Nullable final String fileName, final int valueCount, final int bytes,
+                    final long changeToPutNanos){
+        mOutboundPuts.incrementAndGet();
+        mChangeToPut.record(changeToPutNanos);
+
+        final String fileKey = fileName==null ? DEFAULT_FILE_KEY : fileName;
+        AtomicLong fileBytes = mOutboundBytes.get(fileKey);
+        if(fileBytes==null){
+            fileBytes = new AtomicLong();
+            final AtomicLong existing = mOutboundBytes.putIfAbsent(fileKey, fileBytes);
+            if(existing!=null){
+                fileBytes = existing;
+            }
+        }
+        fileBytes.addAndGet(bytes);
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onValuesSent(fileName, valueCount, bytes, changeToPutNanos);
+        }
+    }
+
+    /**
+     * @param sentAtMillis  The time the item was written on the other device, or 0 if unknown.
+     */
+    void itemReceived(@Nullable final String fileName, final long sentAtMillis){
+        mInboundItems.incrementAndGet();
+
+        long putToApplyMillis = -1;
+        if(sentAtMillis>0){
+            putToApplyMillis = Math.max(0, System.currentTimeMillis() - sentAtMillis);
+            mPutToRemoteApply.record(putToApplyMillis * 1000000);
+        }
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onItemReceived(fileName, putToApplyMillis);
+        }
+    }
+
+    void sendSkipped(@Nullable final String fileName, @NonNull final String key){
+        mSkippedSends.incrementAndGet();
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onSendSkipped(fileName, key);
+        }
+    }
+
+    void echoSuppressed(@Nullable final String fileName, @NonNull final String key){
+        mSuppressedEchoes.incrementAndGet();
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onEchoSuppressed(fileName, key);
+        }
+    }
+
+    void staleValueDropped(@Nullable final String fileName, @NonNull final String key){
+        mDroppedStaleValues.incrementAndGet();
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onStaleValueDropped(fileName, key);
+        }
+    }
+
+    void resync(final long durationNanos){
+        mResyncs.record(durationNanos);
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onResync(durationNanos);
+        }
+    }
+
+    void keySetAccess(@NonNull final String pathPrefix, final int keyCount, final boolean write){
+        (write ? mKeySetWrites : mKeySetReads).incrementAndGet();
+
+        final SyncMetricsListener listener = mListener;
+        if(listener!=null){
+            listener.onKeySetAccess(pathPrefix, keyCount, write);
+        }
+    }
+
+    /** Records time spent initializing a file on the calling thread */
+    void initialized(final long durationNanos){
+        mInitNanos.addAndGet(durationNanos);
+    }
+
+    /** Records the time from the first connection request until the transport connected */
+    void connected(final long durationNanos){
+        mConnectNanos.compareAndSet(-1, durationNanos);
+    }
+
+    @NonNull SyncMetrics snapshot(final int outboundQueueDepth, final int inboundQueueDepth){
+        final Map<String, Long> outboundBytes = new HashMap<>();
+        for(Map.Entry<String, AtomicLong> entry:mOutboundBytes.entrySet()){
+            final String fileName = DEFAULT_FILE_KEY.equals(entry.getKey()) ? null : entry.getKey();
+            outboundBytes.put(fileName, entry.getValue().get());
+        }
+
+        return new SyncMetrics(mOutboundPuts.get(), mInboundItems.get(), outboundBytes,
+                mSkippedSends.get(), mSuppressedEchoes.get(), mDroppedStaleValues.get(),
+                mChangeToPut.snapshot(), mPutToRemoteApply.snapshot(),
+                outboundQueueDepth, inboundQueueDepth,
+                mResyncs.snapshot(), mKeySetReads.get(), mKeySetWrites.get(),
+                mInitNanos.get(), mConnectNanos.get());
+    }
+
+}
@@ -0,0 +1,228 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only journal of the keys of a file whose changes have not been sent,
+ * because the transport was disconnected or the write failed.
+ *
+ * Only keys and the clocks of their changes are recorded, since the latest value of each
+ * key is still in the SharedPreferences file when the journal is replayed. A key is recorded
+ * again only when its clock advances, and the file is rewritten with one record per key once
+ * superseded records outnumber the keys, so the journal stays compact however often a key
+ * changes while offline. Records are kept until their changes have been written, so that changes
+ * being replayed when the process is killed are replayed again. A truncated last record, left by
+ * a process killed while appending, is dropped from the file.
+ */
+final class OutboundJournal {
+
+    private static final String TAG = "WearPrefs";
+
+    /** The journal file, or null if the journal is only kept in memory */
+    @Nullable private final File mFile;
+
+    /**
+     * The clock of the latest change to each key in the journal, in the order they were
+     * first recorded, or 0 if unknown. Null until loaded.
+     */
+    @Nullable private Map<String, Long> mClocks;
+
+    /** Keys being sent, which are kept until their writes succeed or fail */
+    @NonNull private final Set<String> mSending = new HashSet<>();
+
+    /** The number of records in the journal file */
+    private int mRecords;
+
+    OutboundJournal(@Nullable final File file){
+        mFile = file;
+    }
+
+    /**
+     * Records a key whose change has not been sent. Writes to disk, so is called on the outbound lane.
+     *
+     * @param clock The clock of the change, or 0 if unknown.
+     */
+    synchronized void append(@NonNull final String key, final long clock){
+        mSending.remove(key);
+
+        final Long previous = load().get(key);
+        if(previous!=null && previous>=clock){
+            return;
+        }
+
+        mClocks.put(key, clock);
+        if(mFile==null){
+            return;
+        }
+
+        // Superseded records are dropped once they outnumber the keys
+        if(mRecords>=mClocks.size() * 2){
+            rewrite();
+        }else{
+            write(Collections.singletonMap(key, clock), true);
+        }
+    }
+
+    /** Whether there are keys waiting to be sent, other than those already being sent */
+    synchronized boolean isEmpty(){
+        return mSending.containsAll(load().keySet());
+    }
+
+    /** The clock of each journaled change, by key, or 0 if unknown */
+    @NonNull synchronized Map<String, Long> getClocks(){
+        return new LinkedHashMap<>(load());
+    }
+
+    /**
+     * Returns the keys waiting to be sent, and marks them as being sent. They stay in the journal
+     * until they are {@link #removeSent removed}, or appended again if their writes fail.
+     */
+    @NonNull synchronized List<String> replay(){
+        final List<String> keys = new ArrayList<>();
+        for(String key:load().keySet()){
+            if(mSending.add(key)){
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Removes the keys whose changes have been written, unless they have changed again since.
+     *
+     * @param clocks The clock of each written change, by key.
+     */
+    synchronized void removeSent(@NonNull final Map<String, Long> clocks){
+        boolean removed = false;
+        for(Map.Entry<String, Long> sent:clocks.entrySet()){
+            final Long clock = load().get(sent.getKey());
+            if(clock!=null && clock<=sent.getValue()){
+                mClocks.remove(sent.getKey());
+                mSending.remove(sent.getKey());
+                removed = true;
+            }
+        }
+        if(removed){
+            rewrite();
+        }
+    }
+
+    /** Removes a key that doesn't need to be sent, because its current value has already been synchronized */
+    synchronized void remove(@NonNull final String key){
+        mSending.remove(key);
+        if(load().remove(key)!=null){
+            rewrite();
+        }
+    }
+
+    /** Replaces the journal file with a single record per key, or deletes it if there are none */
+    private void rewrite(){
+        mRecords = 0;
+        if(mFile==null){
+            return;
+        }
+
+        if(!mClocks.isEmpty()){
+            write(mClocks, false);
+        }else if(mFile.exists() && !mFile.delete()){
+            Log.w(TAG, "Failed to delete journal "+mFile);
+        }
+    }
+
+    private void write(@NonNull final Map<String, Long> records, final boolean append){
+        final File dir = mFile.getParentFile();
+        if(dir!=null && !dir.exists() && !dir.mkdirs()){
+            Log.w(TAG, "Failed to create journal directory "+dir);
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, append)));
+            for(Map.Entry<String, Long> record:records.entrySet()){
+                out.writeUTF(record.getKey());
+                out.writeLong(record.getValue());
+                mRecords++;
+            }
+        }catch(IOException e){
+            Log.w(TAG, "Failed to write journal "+mFile, e);
+        }finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Reads the journal from disk, the first time it is used. Later records replace earlier ones.
+     * A truncated last record is dropped from the file, so that records appended later can be read.
+     */
+    @NonNull private Map<String, Long> load(){
+        if(mClocks!=null){
+            return mClocks;
+        }
+
+        mClocks = new LinkedHashMap<>();
+        if(mFile==null){
+            return mClocks;
+        }
+
+        final byte[] data;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            data = new byte[(int) mFile.length()];
+            in.readFully(data);
+        }catch(FileNotFoundException e){
+            // Nothing has been journaled
+            return mClocks;
+        }catch(IOException e){
+            Log.w(TAG, "Failed to read journal "+mFile, e);
+            return mClocks;
+        }finally {
+            close(in);
+        }
+
+        final ByteArrayInputStream records = new ByteArrayInputStream(data);
+        final DataInputStream recordsIn = new DataInputStream(records);
+        try {
+            while(records.available()>0){
+                final String key = recordsIn.readUTF();
+                mClocks.put(key, recordsIn.readLong());
+                mRecords++;
+            }
+        }catch(IOException e){
+            // A truncated last record, which would corrupt records appended after it
+            rewrite();
+        }
+        return mClocks;
+    }
+
+    private static void close(@Nullable final Closeable closeable){
+        if(closeable!=null){
+            try {
+                closeable.close();
+            }catch(IOException e){
+                // Ignored
+            }
+        }
+    }
+
+}
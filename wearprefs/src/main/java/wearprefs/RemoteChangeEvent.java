@@ -0,0 +1,91 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Values received from other devices and saved together to a SharedPreferences file.
+ *
+ * Values are of the types stored by SharedPreferences: String, Integer, Long, Float,
+ * Boolean, or a Set of Strings. A null value means the key is absent.
+ */
+public final class RemoteChangeEvent {
+
+    /** A change to a single key */
+    public static final class Change {
+
+        @NonNull private final String key;
+        @Nullable private final Object oldValue;
+        @Nullable private final Object newValue;
+        @Nullable private final String origin;
+        private final long clock;
+
+        Change(@NonNull final String key, @Nullable final Object oldValue, @Nullable final Object newValue,
+               @Nullable final String origin, final long clock){
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+            this.origin = origin;
+            this.clock = clock;
+        }
+
+        @NonNull public String getKey(){
+            return key;
+        }
+
+        /** The value before the change, or null if the key was absent */
+        @Nullable public Object getOldValue(){
+            return oldValue;
+        }
+
+        /** The value after the change, or null if the key was removed */
+        @Nullable public Object getNewValue(){
+            return newValue;
+        }
+
+        /** Whether the key was removed */
+        public boolean isRemoval(){
+            return newValue==null;
+        }
+
+        /**
+         * An id of the WearPrefs instance that made the change, or null if it was
+         * made by a previous version of WearPrefs. Stable only for the lifetime of its process.
+         */
+        @Nullable public String getOrigin(){
+            return origin;
+        }
+
+        /**
+         * The hybrid logical clock of the change, which orders changes to the key across devices,
+         * or 0 if it was made by a previous version of WearPrefs. The upper 48 bits are the wall
+         * clock time of the change in milliseconds.
+         */
+        public long getClock(){
+            return clock;
+        }
+
+    }
+
+    @Nullable private final String fileName;
+    @NonNull private final List<Change> changes;
+
+    RemoteChangeEvent(@Nullable final String fileName, @NonNull final List<Change> changes){
+        this.fileName = fileName;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /** The name of the changed file, or null for the default SharedPreferences file */
+    @Nullable public String getFileName(){
+        return fileName;
+    }
+
+    /** The changed keys, each listed once, in the order they were saved */
+    @NonNull public List<Change> getChanges(){
+        return changes;
+    }
+
+}
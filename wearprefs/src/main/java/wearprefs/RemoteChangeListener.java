@@ -0,0 +1,19 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the values that WearPrefs has saved from other devices, so that they can be
+ * applied incrementally without re-reading the SharedPreferences file.
+ *
+ * @see WearPrefs#addRemoteChangeListener(String, java.util.concurrent.Executor, RemoteChangeListener)
+ */
+public interface RemoteChangeListener {
+
+    /**
+     * Called with the values received from other devices and saved together, such as
+     * the values of a batch. The values have already been saved when this is called.
+     */
+    void onRemoteChanges(@NonNull RemoteChangeEvent event);
+
+}
@@ -0,0 +1,395 @@
+package wearprefs;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A SharedPreferences implementation that keeps its values in an immutable snapshot,
+ * replaced atomically by each write, and persists them to a platform SharedPreferences
+ * file in the background.
+ *
+ * Reads never take a lock, so frequent reads on the UI thread don't contend with
+ * values being saved by WearPrefs. Writes made in quick succession are persisted together
+ * with a single disk write. Both {@link Editor#apply()} and {@link Editor#commit()} update
+ * the snapshot immediately. {@link Editor#apply()} persists asynchronously, while
+ * {@link Editor#commit()} persists before returning, and returns whether the write succeeded.
+ *
+ * Use {@link #get(Context, String)} to retrieve the store for a file, and
+ * {@link SyncOptions.Builder#snapshotStore()} to synchronize it. Once a file is used
+ * through a store, it should not be changed through the platform SharedPreferences.
+ */
+public final class SnapshotPreferences implements SharedPreferences {
+
+    /** How long writes are collected for before being persisted together */
+    private static final long PERSIST_DELAY_MILLIS = 100;
+
+    /** The store for each file, by name. The default file is stored under null. */
+    private static final Map<String, SnapshotPreferences> sStores = new HashMap<>();
+
+    /** Persists the values of all stores, one file at a time */
+    private static ScheduledExecutorService sPersister;
+
+    @NonNull private final SharedPreferences mBacking;
+
+    /** The current values. Replaced, never modified. */
+    @NonNull private volatile Map<String, Object> mSnapshot;
+
+    /** The values last written to the backing file. Only accessed while holding {@link #mPersistLock}. */
+    @NonNull private Map<String, Object> mPersisted;
+
+    /** Held while writing to the backing file, so that the persister and commits write one at a time */
+    @NonNull private final Object mPersistLock = new Object();
+
+    /** Whether persisting the snapshot is already queued */
+    @NonNull private final AtomicBoolean mPersistQueued = new AtomicBoolean();
+
+    /** Held while replacing the snapshot, so that concurrent writes aren't lost */
+    @NonNull private final Object mWriteLock = new Object();
+
+    /** Listeners to notify of changes. Held weakly, as by the platform. */
+    @NonNull private final Map<OnSharedPreferenceChangeListener, Boolean> mListeners = new WeakHashMap<>();
+
+    @NonNull private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Creates a store for the given platform file, loading its values. Use {@link #get} outside of tests. */
+    SnapshotPreferences(@NonNull final SharedPreferences backing){
+        mBacking = backing;
+        mSnapshot = Collections.unmodifiableMap(new HashMap<String, Object>(backing.getAll()));
+        mPersisted = mSnapshot;
+    }
+
+    /**
+     * Retrieves the store for the SharedPreferences file with the given name,
+     * loading its values the first time.
+     *
+     * @param context       The context containing the SharedPreferences file.
+     * @param prefsFileName The name of the file.
+     */
+    @NonNull public static SnapshotPreferences get(@NonNull final Context context, @NonNull final String prefsFileName){
+        synchronized (sStores) {
+            SnapshotPreferences store = sStores.get(prefsFileName);
+            if(store==null){
+                store = new SnapshotPreferences(context.getSharedPreferences(prefsFileName, Context.MODE_PRIVATE));
+                sStores.put(prefsFileName, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Retrieves the store for the default SharedPreferences file, loading its values the first time.
+     *
+     * @param context   The context containing the SharedPreferences file.
+     */
+    @NonNull public static SnapshotPreferences getDefault(@NonNull final Context context){
+        synchronized (sStores) {
+            SnapshotPreferences store = sStores.get(null);
+            if(store==null){
+                store = new SnapshotPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+                sStores.put(null, store);
+            }
+            return store;
+        }
+    }
+
+    @Override public Map<String, ?> getAll() {
+        return mSnapshot;
+    }
+
+    @Nullable @Override public String getString(final String key, @Nullable final String defValue) {
+        final String value = (String) mSnapshot.get(key);
+        return value!=null ? value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable @Override public Set<String> getStringSet(final String key, @Nullable final Set<String> defValues) {
+        final Set<String> values = (Set<String>) mSnapshot.get(key);
+        return values!=null ? values : defValues;
+    }
+
+    @Override public int getInt(final String key, final int defValue) {
+        final Integer value = (Integer) mSnapshot.get(key);
+        return value!=null ? value : defValue;
+    }
+
+    @Override public long getLong(final String key, final long defValue) {
+        final Long value = (Long) mSnapshot.get(key);
+        return value!=null ? value : defValue;
+    }
+
+    @Override public float getFloat(final String key, final float defValue) {
+        final Float value = (Float) mSnapshot.get(key);
+        return value!=null ? value : defValue;
+    }
+
+    @Override public boolean getBoolean(final String key, final boolean defValue) {
+        final Boolean value = (Boolean) mSnapshot.get(key);
+        return value!=null ? value : defValue;
+    }
+
+    @Override public boolean contains(final String key) {
+        return mSnapshot.containsKey(key);
+    }
+
+    @Override public Editor edit() {
+        return new SnapshotEditor();
+    }
+
+    @Override public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, Boolean.TRUE);
+        }
+    }
+
+    @Override public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Replaces the snapshot with one containing the given changes, and queues it to be persisted.
+     *
+     * @param changes   The new value of each changed key, or null for removed keys.
+     * @return The keys whose values changed.
+     */
+    @NonNull private Set<String> write(final boolean clear, @NonNull final Map<String, Object> changes){
+        final Set<String> changedKeys = new LinkedHashSet<>();
+
+        synchronized (mWriteLock) {
+            final Map<String, Object> current = mSnapshot;
+            final Map<String, Object> next;
+
+            if(clear){
+                next = new HashMap<>();
+                changedKeys.addAll(current.keySet());
+            }else{
+                next = new HashMap<>(current);
+            }
+
+            for(Map.Entry<String, Object> change:changes.entrySet()){
+                final String key = change.getKey();
+                final Object value = change.getValue();
+
+                if(value==null){
+                    if(next.remove(key)!=null){
+                        changedKeys.add(key);
+                    }
+                }else if(!value.equals(next.put(key, value))){
+                    changedKeys.add(key);
+                }
+            }
+
+            if(changedKeys.isEmpty()){
+                return changedKeys;
+            }
+            mSnapshot = Collections.unmodifiableMap(next);
+        }
+
+        queuePersist();
+        return changedKeys;
+    }
+
+    /** Queues writing the snapshot to the backing file, after a delay so that further writes are persisted together */
+    private void queuePersist(){
+        if(!mPersistQueued.compareAndSet(false, true)){
+            return;
+        }
+
+        getPersister().schedule(new Runnable() {
+            @Override public void run() {
+                mPersistQueued.set(false);
+                persist();
+            }
+        }, PERSIST_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the values that changed since they were last persisted to the backing file.
+     *
+     * @return Whether the current snapshot has been written successfully.
+     */
+    private boolean persist(){
+        synchronized (mPersistLock) {
+            final Map<String, Object> snapshot = mSnapshot;
+            final Map<String, Object> persisted = mPersisted;
+            if(snapshot==persisted){
+                return true;
+            }
+
+            final Editor editor = mBacking.edit();
+            for(String key:persisted.keySet()){
+                if(!snapshot.containsKey(key)){
+                    editor.remove(key);
+                }
+            }
+            for(Map.Entry<String, Object> entry:snapshot.entrySet()){
+                final Object value = entry.getValue();
+                if(!value.equals(persisted.get(entry.getKey()))){
+                    TypeUtil.saveObject(editor, entry.getKey(), value);
+                }
+            }
+
+            // Only written by this store, one snapshot at a time. Written again by the next persist if it fails.
+            if(!editor.commit()){
+                return false;
+            }
+            mPersisted = snapshot;
+            return true;
+        }
+    }
+
+    @NonNull private static synchronized ScheduledExecutorService getPersister(){
+        if(sPersister==null){
+            sPersister = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(@NonNull final Runnable r) {
+                    final Thread thread = new Thread(r, "WearPrefs-persister");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPersister;
+    }
+
+    /** Notifies the listeners of changed keys on the main thread, as the platform does */
+    private void notifyListeners(@NonNull final Set<String> changedKeys){
+        final List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (mListeners) {
+            if(mListeners.isEmpty()){
+                return;
+            }
+            listeners = new ArrayList<>(mListeners.keySet());
+        }
+
+        final Runnable notify = new Runnable() {
+            @Override public void run() {
+                for(String key:changedKeys){
+                    for(OnSharedPreferenceChangeListener listener:listeners){
+                        listener.onSharedPreferenceChanged(SnapshotPreferences.this, key);
+                    }
+                }
+            }
+        };
+
+        if(Looper.myLooper()==Looper.getMainLooper()){
+            notify.run();
+        }else{
+            mMainHandler.post(notify);
+        }
+    }
+
+    /** Collects changes, and applies them to a new snapshot */
+    private final class SnapshotEditor implements Editor {
+
+        /** The new value of each changed key, or null for removed keys */
+        @NonNull private final Map<String, Object> mChanges = new HashMap<>();
+        private boolean mClear;
+
+        @Override public Editor putString(final String key, @Nullable final String value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override public Editor putStringSet(final String key, @Nullable final Set<String> values) {
+            synchronized (this) {
+                // Copied, so that later changes to the given set don't change the snapshot
+                mChanges.put(key, values==null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+            }
+            return this;
+        }
+
+        @Override public Editor putInt(final String key, final int value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override public Editor putLong(final String key, final long value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override public Editor putFloat(final String key, final float value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override public Editor putBoolean(final String key, final boolean value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override public Editor remove(final String key) {
+            synchronized (this) {
+                mChanges.put(key, null);
+            }
+            return this;
+        }
+
+        @Override public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        /** Updates the snapshot, and persists it on the calling thread. */
+        @Override public boolean commit() {
+            update();
+            return persist();
+        }
+
+        @Override public void apply() {
+            update();
+        }
+
+        /** Applies the changes to a new snapshot, which is queued to be persisted, and notifies the listeners */
+        private void update() {
+            final boolean clear;
+            final Map<String, Object> changes;
+            synchronized (this) {
+                clear = mClear;
+                changes = new HashMap<>(mChanges);
+                mClear = false;
+                mChanges.clear();
+            }
+
+            final Set<String> changedKeys = write(clear, changes);
+            if(!changedKeys.isEmpty()){
+                notifyListeners(changedKeys);
+            }
+        }
+
+    }
+
+}
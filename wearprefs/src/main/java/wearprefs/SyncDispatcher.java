@@ -0,0 +1,134 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A serial lane of synchronization work, executed in submission order
+ * on a single dedicated background thread.
+ *
+ * The number of queued tasks is bounded. When the queue is full,
+ * {@link #post(Runnable)} blocks until the worker has made room.
+ */
+final class SyncDispatcher {
+
+    private static final String TAG = "WearPrefs";
+
+    /** The default maximum number of tasks waiting to be executed */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** How long the worker thread is kept alive while there is no work */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    @NonNull private final ScheduledThreadPoolExecutor mExecutor;
+    @NonNull private final Semaphore mCapacity;
+    private final int mMaxCapacity;
+
+    /** The current worker thread, which is replaced if it times out */
+    private volatile Thread mWorker;
+
+    SyncDispatcher(@NonNull final String name){
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    SyncDispatcher(@NonNull final String name, final int capacity){
+        mMaxCapacity = capacity;
+        mCapacity = new Semaphore(capacity);
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override public Thread newThread(@NonNull final Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                mWorker = thread;
+                return thread;
+            }
+        });
+        mExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the given task for execution after all previously posted tasks.
+     * Blocks if the queue is full, unless called by a task of this dispatcher, which
+     * can't wait for itself to make room. Tasks posted after {@link #shutdown()} are dropped.
+     *
+     * @return false if the task was dropped.
+     */
+    boolean post(@NonNull final Runnable task){
+        final boolean bounded = Thread.currentThread()!=mWorker;
+        if(bounded) {
+            mCapacity.acquireUninterruptibly();
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        runSafely(task);
+                    } finally {
+                        if(bounded) {
+                            mCapacity.release();
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            if(bounded) {
+                mCapacity.release();
+            }
+            return false;
+        }
+    }
+
+    /** Queues the given task for execution once the given delay has passed */
+    void postDelayed(@NonNull final Runnable task, final long delayMillis){
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override public void run() {
+                    runSafely(task);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Dispatcher has been shut down
+        }
+    }
+
+    /** Returns the number of posted tasks that have not yet finished */
+    int getQueueDepth(){
+        return mMaxCapacity - mCapacity.availablePermits();
+    }
+
+    /**
+     * Stops accepting new tasks. Tasks that have already been
+     * posted are still executed, delayed tasks are discarded.
+     */
+    void shutdown(){
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mExecutor.shutdown();
+    }
+
+    /** Waits for all posted tasks to finish after {@link #shutdown()} */
+    boolean awaitTermination(final long timeoutMillis){
+        try {
+            return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void runSafely(@NonNull final Runnable task){
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Preference synchronization failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending result of writing changes to the DataApi. Completes with true once
+ * every change has been written, or with false if any of them failed.
+ *
+ * Wait for the result with {@link #get()} on a background thread, or be notified
+ * with {@link #addCallback(Callback)}. Cannot be cancelled.
+ */
+public final class SyncFuture implements Future<Boolean> {
+
+    /** Notified when a {@link SyncFuture} completes */
+    public interface Callback {
+
+        /**
+         * Called once the changes have been written. May be called on any thread.
+         *
+         * @param success   Whether all of the changes were written successfully.
+         */
+        void onComplete(boolean success);
+
+    }
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mSuccess;
+
+    /** Callbacks waiting for completion, or null once complete */
+    private List<Callback> mCallbacks = new ArrayList<>();
+
+    SyncFuture(){}
+
+    /** Completes the given future once all of the given futures have completed */
+    static void completeWhenAll(@NonNull final Collection<SyncFuture> futures, @NonNull final SyncFuture result){
+        if(futures.isEmpty()){
+            result.complete(true);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        final AtomicBoolean success = new AtomicBoolean(true);
+        final Callback callback = new Callback() {
+            @Override public void onComplete(final boolean succeeded) {
+                if(!succeeded){
+                    success.set(false);
+                }
+                if(remaining.decrementAndGet()==0){
+                    result.complete(success.get());
+                }
+            }
+        };
+
+        for(SyncFuture future:futures){
+            future.addCallback(callback);
+        }
+    }
+
+    /** Completes the future, unless it has already completed, and notifies the callbacks */
+    void complete(final boolean success){
+        final List<Callback> callbacks;
+        synchronized (this) {
+            if(mCallbacks==null){
+                return;
+            }
+            mSuccess = success;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+
+        mDone.countDown();
+        for(Callback callback:callbacks){
+            callback.onComplete(success);
+        }
+    }
+
+    /**
+     * Notifies the given callback when the changes have been written.
+     * If they already have been, it is notified immediately on the calling thread.
+     */
+    public void addCallback(@NonNull final Callback callback){
+        synchronized (this) {
+            if(mCallbacks!=null){
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.onComplete(mSuccess);
+    }
+
+    @Override public boolean cancel(final boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override public boolean isCancelled() {
+        return false;
+    }
+
+    @Override public boolean isDone() {
+        return mDone.getCount()==0;
+    }
+
+    /** Waits for the changes to be written. Must not be called on the main thread. */
+    @Override public Boolean get() throws InterruptedException {
+        mDone.await();
+        return mSuccess;
+    }
+
+    /** Waits for the changes to be written, for up to the given time. Must not be called on the main thread. */
+    @Override public Boolean get(final long timeout, @NonNull final TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        if(!mDone.await(timeout, unit)){
+            throw new TimeoutException();
+        }
+        return mSuccess;
+    }
+
+}
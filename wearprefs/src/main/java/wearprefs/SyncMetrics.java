@@ -0,0 +1,192 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of WearPrefs' synchronization counters, since it was initialized.
+ *
+ * @see WearPrefs#getMetrics()
+ */
+public final class SyncMetrics {
+
+    /** A distribution of durations, in power-of-two buckets of nanoseconds */
+    public static final class Histogram {
+
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Histogram(@NonNull final long[] buckets, final long count, final long totalNanos, final long maxNanos){
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** The number of recorded durations */
+        public long getCount(){
+            return count;
+        }
+
+        public long getMeanNanos(){
+            return count==0 ? 0 : totalNanos/count;
+        }
+
+        public long getMaxNanos(){
+            return maxNanos;
+        }
+
+        /**
+         * Estimates the given percentile, as the upper bound of the bucket containing it.
+         *
+         * @param percentile    A percentile between 0 and 100.
+         */
+        public long getPercentileNanos(final double percentile){
+            if(count==0){
+                return 0;
+            }
+
+            final long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++){
+                seen += buckets[i];
+                if(seen>=target){
+                    return Math.min(maxNanos, MetricsRecorder.bucketUpperBound(i));
+                }
+            }
+            return maxNanos;
+        }
+
+    }
+
+    private final long outboundPuts;
+    private final long inboundItems;
+    private final Map<String, Long> outboundBytesByFile;
+    private final long skippedSends;
+    private final long suppressedEchoes;
+    private final long droppedStaleValues;
+    private final Histogram changeToPut;
+    private final Histogram putToRemoteApply;
+    private final int outboundQueueDepth;
+    private final int inboundQueueDepth;
+    private final Histogram resyncs;
+    private final long keySetReads;
+    private final long keySetWrites;
+    private final long initNanos;
+    private final long connectNanos;
+
+    SyncMetrics(final long outboundPuts, final long inboundItems,
+                @NonNull final Map<String, Long> outboundBytesByFile,
+                final long skippedSends, final long suppressedEchoes, final long droppedStaleValues,
+                @NonNull final Histogram changeToPut, @NonNull final Histogram putToRemoteApply,
+                final int outboundQueueDepth, final int inboundQueueDepth,
+                @NonNull final Histogram resyncs, final long keySetReads, final long keySetWrites,
+                final long initNanos, final long connectNanos){
+        this.outboundPuts = outboundPuts;
+        this.inboundItems = inboundItems;
+        this.outboundBytesByFile = Collections.unmodifiableMap(outboundBytesByFile);
+        this.skippedSends = skippedSends;
+        this.suppressedEchoes = suppressedEchoes;
+        this.droppedStaleValues = droppedStaleValues;
+        this.changeToPut = changeToPut;
+        this.putToRemoteApply = putToRemoteApply;
+        this.outboundQueueDepth = outboundQueueDepth;
+        this.inboundQueueDepth = inboundQueueDepth;
+        this.resyncs = resyncs;
+        this.keySetReads = keySetReads;
+        this.keySetWrites = keySetWrites;
+        this.initNanos = initNanos;
+        this.connectNanos = connectNanos;
+    }
+
+    /** The number of items written to the DataApi, excluding key sets */
+    public long getOutboundPuts(){
+        return outboundPuts;
+    }
+
+    /** The number of items received from the DataApi */
+    public long getInboundItems(){
+        return inboundItems;
+    }
+
+    /**
+     * The encoded size of all items written to the DataApi for each file, in bytes.
+     * The default SharedPreferences file has a null key.
+     */
+    @NonNull public Map<String, Long> getOutboundBytesByFile(){
+        return outboundBytesByFile;
+    }
+
+    /** The encoded size of all items written for the given file, in bytes */
+    public long getOutboundBytes(@Nullable final String fileName){
+        final Long bytes = outboundBytesByFile.get(fileName);
+        return bytes==null ? 0 : bytes;
+    }
+
+    /** The number of changed values that were not sent, because they had already been synchronized */
+    public long getSkippedSends(){
+        return skippedSends;
+    }
+
+    /** The number of received values that were not saved or sent back, because they had already been synchronized */
+    public long getSuppressedEchoes(){
+        return suppressedEchoes;
+    }
+
+    /** The number of received values that were not saved, because the value on this device was changed more recently */
+    public long getDroppedStaleValues(){
+        return droppedStaleValues;
+    }
+
+    /** The time from a value changing until it was written to the DataApi */
+    @NonNull public Histogram getChangeToPut(){
+        return changeToPut;
+    }
+
+    /**
+     * The time from an item being written on another device until it was saved on this one.
+     * Measured with the clocks of both devices, so it includes any difference between them.
+     */
+    @NonNull public Histogram getPutToRemoteApply(){
+        return putToRemoteApply;
+    }
+
+    /** The number of tasks waiting to send changes, when the snapshot was taken */
+    public int getOutboundQueueDepth(){
+        return outboundQueueDepth;
+    }
+
+    /** The number of tasks waiting to save received changes, when the snapshot was taken */
+    public int getInboundQueueDepth(){
+        return inboundQueueDepth;
+    }
+
+    /** The number and duration of full reloads of all values from the DataApi */
+    @NonNull public Histogram getResyncs(){
+        return resyncs;
+    }
+
+    public long getKeySetReads(){
+        return keySetReads;
+    }
+
+    public long getKeySetWrites(){
+        return keySetWrites;
+    }
+
+    /** The total time spent in {@link WearPrefs#init} calls, on the calling threads */
+    public long getInitNanos(){
+        return initNanos;
+    }
+
+    /** The time from first connecting until the transport was connected, or -1 if it hasn't connected */
+    public long getConnectNanos(){
+        return connectNanos;
+    }
+
+}
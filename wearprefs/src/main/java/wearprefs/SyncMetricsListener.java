@@ -0,0 +1,52 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Receives synchronization events as they happen, for exporting to other telemetry.
+ *
+ * Methods are called on WearPrefs' background threads, and should return quickly.
+ * File names are null for the default SharedPreferences file.
+ *
+ * @see WearPrefs#setMetricsListener(SyncMetricsListener)
+ */
+public interface SyncMetricsListener {
+
+    /**
+     * Called when values have been written to the DataApi.
+     *
+     * @param valueCount        The number of values in the item (more than one for batches).
+     * @param bytes             The encoded size of the item.
+     * @param changeToPutNanos  The time from the first change until the item was written.
+     */
+    void onValuesSent(@Nullable String fileName, int valueCount, int bytes, long changeToPutNanos);
+
+    /**
+     * Called when an item has been received from the DataApi.
+     *
+     * @param putToApplyMillis  The time from the item being written on the other device until it
+     *                          was saved here, by the two devices' clocks, or -1 if unknown.
+     */
+    void onItemReceived(@Nullable String fileName, long putToApplyMillis);
+
+    /** Called when a changed value was not sent, because it was the last value sent or received */
+    void onSendSkipped(@Nullable String fileName, @NonNull String key);
+
+    /** Called when a received value was not saved, or its change not sent back, because it was already synchronized */
+    void onEchoSuppressed(@Nullable String fileName, @NonNull String key);
+
+    /** Called when a received value was not saved, because the value on this device was changed more recently */
+    void onStaleValueDropped(@Nullable String fileName, @NonNull String key);
+
+    /** Called when all values have been reloaded from the DataApi */
+    void onResync(long durationNanos);
+
+    /**
+     * Called when a key set has been read from or written to the DataApi.
+     *
+     * @param write     true for a write, false for a read.
+     */
+    void onKeySetAccess(@NonNull String pathPrefix, int keyCount, boolean write);
+
+}
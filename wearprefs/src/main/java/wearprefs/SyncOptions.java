@@ -0,0 +1,249 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options controlling how a SharedPreferences file is synchronized.
+ *
+ * Use {@link SyncOptions.Builder} to create an instance, and pass it to
+ * {@link WearPrefs#init(android.content.Context, String, SyncOptions)}.
+ */
+public final class SyncOptions {
+
+    /** Synchronizes every change individually, as soon as it is made */
+    public static final SyncOptions DEFAULT = new Builder().build();
+
+    /** The default maximum time that changes to deferred keys are held for */
+    public static final long DEFAULT_DEFERRED_DELAY_MILLIS = 60 * 1000;
+
+    private final long batchWindowMillis;
+    private final int compressionThresholdBytes;
+    @NonNull private final KeyFilter keyFilter;
+    @Nullable private final KeyFilter immediateKeys;
+    @Nullable private final KeyFilter deferredKeys;
+    private final long deferredDelayMillis;
+    private final boolean lazy;
+    private final boolean snapshotStore;
+
+    private SyncOptions(final Builder builder){
+        batchWindowMillis = builder.batchWindowMillis;
+        compressionThresholdBytes = builder.compressionThresholdBytes;
+        keyFilter = KeyFilter.compile(builder.includes, builder.excludes);
+        immediateKeys = compileRules(builder.immediate);
+        deferredKeys = compileRules(builder.deferred);
+        deferredDelayMillis = builder.deferredDelayMillis;
+        lazy = builder.lazy;
+        snapshotStore = builder.snapshotStore;
+    }
+
+    @Nullable private static KeyFilter compileRules(@NonNull final List<String> rules){
+        return rules.isEmpty()?null:KeyFilter.compile(rules, Collections.<String>emptyList());
+    }
+
+    /** The time that changes are collected for before being sent together, or 0 if batching is disabled */
+    public long getBatchWindowMillis(){
+        return batchWindowMillis;
+    }
+
+    /** Whether changes are collected and sent together */
+    public boolean isBatching(){
+        return batchWindowMillis > 0;
+    }
+
+    /** Whether strings and string sets are encoded compactly when sent */
+    public boolean isCompactEncoding(){
+        return compressionThresholdBytes >= 0;
+    }
+
+    /** The encoded size above which values are compressed, or -1 if compact encoding is disabled */
+    public int getCompressionThresholdBytes(){
+        return compressionThresholdBytes;
+    }
+
+    /** Whether changes to the given key are synchronized */
+    public boolean isKeySynced(@NonNull final String key){
+        return keyFilter.accepts(key);
+    }
+
+    /** Whether changes to the given key are sent as soon as they are made, even when batching */
+    public boolean isImmediate(@NonNull final String key){
+        return immediateKeys!=null && immediateKeys.accepts(key);
+    }
+
+    /** Whether changes to the given key are held back, to be sent later with other changes */
+    public boolean isDeferred(@NonNull final String key){
+        return deferredKeys!=null && deferredKeys.accepts(key) && !isImmediate(key);
+    }
+
+    /** The maximum time that changes to deferred keys are held for */
+    public long getDeferredDelayMillis(){
+        return deferredDelayMillis;
+    }
+
+    /** Whether connecting to other devices is delayed until the file is first changed */
+    public boolean isLazy(){
+        return lazy;
+    }
+
+    /** Whether the file is synchronized through its {@link SnapshotPreferences} store */
+    public boolean isSnapshotStore(){
+        return snapshotStore;
+    }
+
+    public static final class Builder {
+
+        private long batchWindowMillis = 0;
+        private int compressionThresholdBytes = -1;
+        private final List<String> includes = new ArrayList<>();
+        private final List<String> excludes = new ArrayList<>();
+        private final List<String> immediate = new ArrayList<>();
+        private final List<String> deferred = new ArrayList<>();
+        private long deferredDelayMillis = DEFAULT_DEFERRED_DELAY_MILLIS;
+        private boolean lazy = false;
+        private boolean snapshotStore = false;
+
+        /**
+         * Collects changes made within the given time window, and sends them to
+         * connected devices together as a single DataApi item. A window of 0 disables
+         * batching, so that each change is sent individually.
+         *
+         * @param millis    The time to wait for further changes after the first change, in milliseconds.
+         */
+        public Builder batchWindow(final long millis){
+            if(millis<0) {
+                throw new IllegalArgumentException("Batch window must not be negative");
+            }
+
+            batchWindowMillis = millis;
+            return this;
+        }
+
+        /**
+         * Encodes strings and string sets compactly when they are sent, and compresses
+         * them when they are larger than the given size. Reduces the data transmitted
+         * for large values, such as JSON strings and big string sets.
+         *
+         * Encoded values can only be read by versions of WearPrefs that support compact
+         * encoding, so it should only be enabled once all connected devices have been updated.
+         *
+         * @param compressionThresholdBytes The encoded size, in bytes, above which values are compressed.
+         */
+        public Builder compactEncoding(final int compressionThresholdBytes){
+            if(compressionThresholdBytes<0) {
+                throw new IllegalArgumentException("Compression threshold must not be negative");
+            }
+
+            this.compressionThresholdBytes = compressionThresholdBytes;
+            return this;
+        }
+
+        /**
+         * Synchronizes only the keys matching the given rules. If no keys are included, all keys are.
+         *
+         * A rule is an exact key, a prefix followed by <code>*</code> (e.g. <code>"cache_*"</code>),
+         * or a glob, in which <code>*</code> matches any characters and <code>?</code> matches one.
+         *
+         * @param rules The rules matching keys to synchronize.
+         */
+        public Builder include(@NonNull final String... rules){
+            includes.addAll(checkRules(rules));
+            return this;
+        }
+
+        /**
+         * Doesn't synchronize keys matching the given rules, even if they are included.
+         * Changes to excluded keys are ignored, and received values for them are not saved.
+         *
+         * @param rules The rules matching keys not to synchronize, in the format of {@link #include(String...)}.
+         */
+        public Builder exclude(@NonNull final String... rules){
+            excludes.addAll(checkRules(rules));
+            return this;
+        }
+
+        /**
+         * Sends changes to keys matching the given rules as soon as they are made,
+         * bypassing the batch window. Use for values the user is waiting to see change.
+         * Pending deferred changes are sent along with them.
+         *
+         * @param rules The rules matching immediate keys, in the format of {@link #include(String...)}.
+         */
+        public Builder immediate(@NonNull final String... rules){
+            immediate.addAll(checkRules(rules));
+            return this;
+        }
+
+        /**
+         * Holds back changes to keys matching the given rules, until the deferred delay
+         * has passed or another change is sent, whichever is sooner. Only the latest value
+         * of each key is sent. Use for values that don't need to be up to date, such as counters.
+         * Keys that are also immediate are not deferred.
+         *
+         * @param rules The rules matching deferred keys, in the format of {@link #include(String...)}.
+         */
+        public Builder deferred(@NonNull final String... rules){
+            deferred.addAll(checkRules(rules));
+            return this;
+        }
+
+        /**
+         * Sets the maximum time that changes to deferred keys are held for.
+         * Defaults to {@link #DEFAULT_DEFERRED_DELAY_MILLIS}.
+         *
+         * @param millis    The maximum delay after the first deferred change, in milliseconds.
+         */
+        public Builder deferredDelay(final long millis){
+            if(millis<0) {
+                throw new IllegalArgumentException("Deferred delay must not be negative");
+            }
+
+            deferredDelayMillis = millis;
+            return this;
+        }
+
+        /**
+         * Delays connecting to other devices, and loading their values, until the file is
+         * first changed or {@link WearPrefs#connect()} is called. Initialization then only
+         * registers a change listener, which suits processes that may never use the file.
+         *
+         * The connection is shared by all files, so values of a lazy file are also loaded
+         * as soon as any other file connects, or when it is initialized if another file already has.
+         */
+        public Builder lazy(){
+            lazy = true;
+            return this;
+        }
+
+        /**
+         * Synchronizes the file through its {@link SnapshotPreferences} store instead of the
+         * platform SharedPreferences, so that received values are saved without locking out
+         * readers, and persisted in the background. The app must then read and write the file
+         * through {@link SnapshotPreferences#get(android.content.Context, String)}.
+         */
+        public Builder snapshotStore(){
+            snapshotStore = true;
+            return this;
+        }
+
+        private static List<String> checkRules(final String[] rules){
+            for(String rule:rules){
+                if(rule==null || rule.isEmpty()) {
+                    throw new IllegalArgumentException("Key rules must not be null or empty");
+                }
+            }
+            return Arrays.asList(rules);
+        }
+
+        public SyncOptions build(){
+            return new SyncOptions(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,274 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.DataMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The synchronization state of a single SharedPreferences file.
+ */
+final class SyncedFile {
+
+    /** A received value stored in an Asset, which is read on the asset lane before it is saved */
+    static final class PendingAsset {
+
+        @NonNull final String key;
+        @NonNull final Object value;
+        final int tag;
+        @Nullable final HybridClock.Version version;
+
+        /** The decoded value, set on the asset lane once {@link #read} */
+        @Nullable Object decoded;
+        boolean read;
+
+        PendingAsset(@NonNull final String key, @NonNull final Object value, final int tag,
+                     @Nullable final HybridClock.Version version){
+            this.key = key;
+            this.value = value;
+            this.tag = tag;
+            this.version = version;
+        }
+
+    }
+
+    @NonNull final SharedPreferences prefs;
+    @Nullable final String fileName;
+    @NonNull final String pathPrefix;
+    @NonNull final SyncOptions options;
+
+    /**
+     * Keys whose changes have not been sent, to be replayed when the transport reconnects.
+     * Kept in memory until the file's journal is opened. Only accessed on the outbound lane.
+     */
+    @NonNull OutboundJournal journal = new OutboundJournal(null);
+
+    /** A digest of the file's synchronized values, compared with other devices' when reconciling */
+    @NonNull final FileDigest digest = new FileDigest();
+
+    /** Whether publishing the digest to the DataApi is already queued */
+    @NonNull final AtomicBoolean digestPublishQueued = new AtomicBoolean();
+
+    /** Listeners to received values, and the executors to notify them on */
+    @NonNull final Map<RemoteChangeListener, Executor> changeListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Received values saved to an editor that hasn't been applied yet, by key.
+     * Only recorded while there are change listeners. Only accessed on the inbound lane.
+     */
+    @NonNull final Map<String, RemoteChangeEvent.Change> pendingChanges = new LinkedHashMap<>();
+
+    /**
+     * Held while sending or saving values of this file, so that data isn't sent and
+     * received simultaneously. Other files are synchronized independently.
+     */
+    @NonNull final Object lock = new Object();
+
+    /**
+     * The latest value of every key that has been sent in a batch.
+     * Batches are sent cumulatively, because a DataApi item may be replaced
+     * before a connected device has received it. Only accessed on the outbound lane.
+     */
+    @NonNull final DataMap batchValues = new DataMap();
+
+    /**
+     * Whether this device's existing batch item has been read into the batch, which is done
+     * before the first batch is sent by this process. Only accessed on the outbound lane.
+     */
+    boolean batchLoaded;
+
+    /**
+     * Completes once the batch that was waiting for this device's existing batch item has been
+     * sent, or null if the item isn't being read. Only accessed on the outbound lane.
+     */
+    @Nullable SyncFuture batchLoad;
+
+    /** The type tag of each value in {@link #batchValues}. Only accessed on the outbound lane. */
+    @NonNull final DataMap batchTypes = new DataMap();
+
+    /** The clock of each value and removal in the batch. Only accessed on the outbound lane. */
+    @NonNull final DataMap batchClocks = new DataMap();
+
+    /** Keys removed from the file since batching began. Only accessed on the outbound lane. */
+    @NonNull final Set<String> batchRemovedKeys = new HashSet<>();
+
+    /** Keys changed since the last batch was sent. Only accessed on the outbound lane. */
+    @NonNull final Set<String> pendingBatchKeys = new HashSet<>();
+
+    /** When the first of the pending batch keys was changed, by {@link System#nanoTime()} */
+    long pendingBatchChangedAtNanos;
+
+    /** Deferred keys changed since they were last sent. Only accessed on the outbound lane. */
+    @NonNull final Set<String> pendingDeferredKeys = new HashSet<>();
+
+    /** When the first of the pending deferred keys was changed, by {@link System#nanoTime()} */
+    long pendingDeferredChangedAtNanos;
+
+    /**
+     * The latest received value of each key whose Asset hasn't been saved yet, so that
+     * receiving the same value again doesn't read it again. Only accessed on the inbound lane.
+     */
+    @NonNull final Map<String, PendingAsset> pendingAssets = new HashMap<>();
+
+    /** Pending Assets that haven't been queued to be read yet. Only accessed on the inbound lane. */
+    @NonNull final List<PendingAsset> unreadAssets = new ArrayList<>();
+
+    /** The number of resyncs waiting for their reads to complete. Only accessed on the inbound lane. */
+    int resyncsInProgress;
+
+    /**
+     * Keys received while a resync was waiting for its reads, whose values are newer
+     * than the ones it read. Only accessed on the inbound lane.
+     */
+    @NonNull final Set<String> receivedDuringResync = new HashSet<>();
+
+    /**
+     * The fingerprint of the last value sent or received for each key.
+     * Values matching these have already been synchronized.
+     */
+    @NonNull private final Map<String, Long> mSyncedFingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * The last known type of each key's value, so that a single value
+     * can be read without copying the whole file.
+     */
+    @NonNull private final Map<String, Integer> mKeyTypes = new ConcurrentHashMap<>();
+
+    /** The version of the latest change to each key, made on this device or received */
+    @NonNull private final Map<String, HybridClock.Version> mVersions = new ConcurrentHashMap<>();
+
+    /**
+     * The version of the last received value of each key that was dropped for being older
+     * than the key's latest change, so that a value received again isn't reported again.
+     * Only accessed on the inbound lane.
+     */
+    @NonNull private final Map<String, HybridClock.Version> mDroppedVersions = new HashMap<>();
+
+    /**
+     * The fingerprints of received values that are being saved, for keys whose change
+     * notification has not yet been delivered. Used to recognise changes made by
+     * WearPrefs itself without unregistering the change listener.
+     */
+    @NonNull private final Map<String, Long> mRemoteOriginFingerprints = new ConcurrentHashMap<>();
+
+    SyncedFile(@NonNull final SharedPreferences prefs,
+               @Nullable final String fileName,
+               @NonNull final String pathPrefix,
+               @NonNull final SyncOptions options){
+        this.prefs = prefs;
+        this.fileName = fileName;
+        this.pathPrefix = pathPrefix;
+        this.options = options;
+    }
+
+    /** Whether the given value fingerprint is the last one that was sent or received for the given key */
+    boolean isSynced(@NonNull final String key, final long fingerprint){
+        final Long synced = mSyncedFingerprints.get(key);
+        return synced!=null && synced==fingerprint;
+    }
+
+    /** Flags a change to the given key, about to be saved, as having been received from a connected device */
+    void markRemoteOrigin(@NonNull final String key, final long fingerprint){
+        mRemoteOriginFingerprints.put(key, fingerprint);
+    }
+
+    /**
+     * Clears the remote origin flag of the given key, if it has one.
+     *
+     * @return true if the key's current value is the received value that was flagged,
+     * meaning that the change was made by WearPrefs rather than by the app.
+     */
+    boolean consumeRemoteOrigin(@NonNull final String key){
+        final Long fingerprint = mRemoteOriginFingerprints.remove(key);
+        return fingerprint!=null && fingerprint==Fingerprint.of(readValue(key));
+    }
+
+    /**
+     * Reads the current value of the given key, using the typed getter for its
+     * last known type. Does not call {@link SharedPreferences#getAll()}.
+     */
+    @Nullable Object readValue(@NonNull final String key){
+        final Integer type = mKeyTypes.get(key);
+
+        if(type!=null) {
+            try {
+                return TypeUtil.getObject(prefs, key, type);
+            } catch (ClassCastException e) {
+                // The type has changed
+            }
+        }
+
+        final Object value = TypeUtil.getObject(prefs, key);
+        rememberType(key, value);
+        return value;
+    }
+
+    /**
+     * The type of the given key's value when it was last read or saved, reading
+     * the value if its type isn't known yet.
+     *
+     * @return The type tag, or {@link TypeUtil#TYPE_NONE} if the file has never had a value for the key.
+     */
+    int getKnownType(@NonNull final String key){
+        Integer type = mKeyTypes.get(key);
+        if(type==null){
+            readValue(key);
+            type = mKeyTypes.get(key);
+        }
+        return type==null ? TypeUtil.TYPE_NONE : type;
+    }
+
+    /** Records the type of a value that has been read from or saved to the file */
+    void rememberType(@NonNull final String key, @Nullable final Object value){
+        rememberType(key, TypeUtil.getType(value));
+    }
+
+    /** Records the type of a value that has been read from or saved to the file */
+    void rememberType(@NonNull final String key, final int type){
+        if(type!=TypeUtil.TYPE_NONE) {
+            mKeyTypes.put(key, type);
+        }
+    }
+
+    /** The version of the latest change to the given key, or null if it hasn't changed since initialization */
+    @Nullable HybridClock.Version getVersion(@NonNull final String key){
+        return mVersions.get(key);
+    }
+
+    /** Records the version of a change to the given key, made on this device or received */
+    void setVersion(@NonNull final String key, @NonNull final HybridClock.Version version){
+        mVersions.put(key, version);
+    }
+
+    /**
+     * Records that a received value of the given key was dropped for being stale.
+     *
+     * @return false if the same version was the last one dropped, meaning that it has been received again.
+     */
+    boolean markDropped(@NonNull final String key, @NonNull final HybridClock.Version version){
+        return !version.equals(mDroppedVersions.put(key, version));
+    }
+
+    /** Forgets the last value synchronized for the given key, so that its current value is sent again */
+    void forgetSynced(@NonNull final String key){
+        mSyncedFingerprints.remove(key);
+    }
+
+    /** Records the fingerprint of a value that has been sent or received for the given key */
+    void markSynced(@NonNull final String key, final long fingerprint){
+        mSyncedFingerprints.put(key, fingerprint);
+    }
+
+}
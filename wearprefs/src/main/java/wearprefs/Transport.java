@@ -0,0 +1,104 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Moves DataMaps between the devices that WearPrefs synchronizes.
+ *
+ * Items are identified by path. Each device has its own item at a given
+ * path, and reads return the items of every device, as in the Wearable DataApi.
+ *
+ * Reads and writes don't block. Their results are passed to callbacks, which may be called
+ * on any thread, including the calling thread, and must return quickly.
+ *
+ * @see WearableTransport
+ * @see LoopbackTransport
+ */
+public interface Transport {
+
+    /** Receives notifications of connection and data changes from a transport */
+    interface Listener {
+
+        /** Called when the transport has connected and items can be read and written */
+        void onConnected();
+
+        /** Called when the transport has lost its connection. Items can't be written until it reconnects. */
+        void onConnectionSuspended();
+
+        /** Called when items have been written, by this device or by another one */
+        void onDataChanged(@NonNull List<DataMap> changedItems);
+
+        /** Called when another device has connected */
+        void onPeerConnected(@NonNull String nodeId);
+
+        /** Called when another device has disconnected */
+        void onPeerDisconnected(@NonNull String nodeId);
+
+    }
+
+    /** Receives the items read from a transport */
+    interface ReadCallback {
+
+        /** Called with the items that were read, or with no items if the read failed */
+        void onResult(@NonNull List<DataMap> items);
+
+    }
+
+    /** Notified when a write has completed */
+    interface WriteCallback {
+
+        /** Called once the item has been written, or has failed to be written */
+        void onComplete(boolean success);
+
+    }
+
+    /** Connects the transport, notifying the given listener of changes from then on. Called on a background thread. */
+    void connect(@NonNull Listener listener);
+
+    /** Stops notifying the listener, and disconnects the transport */
+    void disconnect();
+
+    /** The id of this device, or null if the transport hasn't connected yet */
+    @Nullable String getLocalNodeId();
+
+    /**
+     * Writes this device's item at the given path, replacing any previous item.
+     * Returns before the item has been written.
+     *
+     * @param callback  Notified once the item has been written, or null.
+     * @return The encoded size of the item, in bytes.
+     */
+    int putDataMap(@NonNull String path, @NonNull DataMap dataMap, @Nullable WriteCallback callback);
+
+    /**
+     * Deletes this device's item at the given path. Other devices' items can't be deleted.
+     * Returns before the item has been deleted.
+     *
+     * @param callback  Notified once the item has been deleted, or null.
+     */
+    void deleteDataMap(@NonNull String path, @Nullable WriteCallback callback);
+
+    /** Reads the items of all devices at exactly the given path */
+    void getDataMaps(@NonNull String path, @NonNull ReadCallback callback);
+
+    /** Reads the items of all devices whose path starts with the given prefix */
+    void getDataMapsWithPrefix(@NonNull String pathPrefix, @NonNull ReadCallback callback);
+
+    /** Reads the item of the given device at exactly the given path */
+    void getDataMapsFromNode(@NonNull String nodeId, @NonNull String path, @NonNull ReadCallback callback);
+
+    /** Reads the items of the given device whose path starts with the given prefix */
+    void getDataMapsFromNodeWithPrefix(@NonNull String nodeId, @NonNull String pathPrefix, @NonNull ReadCallback callback);
+
+    /** Opens a stream of the contents of an asset referenced by a received item. Blocks until it is open. */
+    @NonNull InputStream openAsset(@NonNull Asset asset) throws IOException;
+
+}
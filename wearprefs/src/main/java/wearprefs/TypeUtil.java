@@ -4,8 +4,12 @@ import android.content.SharedPreferences;
 
 import com.google.android.gms.wearable.DataMap;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Set;
 
 /**
@@ -13,60 +17,306 @@ import java.util.Set;
  */
 public class TypeUtil {
 
-    /**
-     * Determines the type of the given object and saves it into
-     * the given preference file accordingly
-     */
-    public static void saveObject(final SharedPreferences.Editor editor,
-                            final String key,
-                            final Object o){
+    // Tags for each type of value that SharedPreferences accepts
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_STRING = 1;
+    public static final int TYPE_INT = 2;
+    public static final int TYPE_BOOLEAN = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_FLOAT = 5;
+    public static final int TYPE_STRING_SET = 6;
 
-        if(o==null) {
-            editor.remove(key);
-        }else if(o instanceof String){
-            editor.putString(key, (String)o);
-        }else if(o instanceof Integer){
-            editor.putInt(key, (Integer)o);
-        }else if(o instanceof Boolean){
-            editor.putBoolean(key, (Boolean)o);
-        }else if(o instanceof Long){
-            editor.putLong(key, (Long)o);
-        }else if(o instanceof Float){
-            editor.putFloat(key, (Float)o);
-        }else if(o instanceof ArrayList){
-            final Set asSet = new HashSet();
-            asSet.addAll((ArrayList)o);
+    /** The order in which types are tried when reading a value of unknown type */
+    private static final int[] PROBE_ORDER = {
+            TYPE_STRING, TYPE_BOOLEAN, TYPE_INT, TYPE_LONG, TYPE_FLOAT, TYPE_STRING_SET
+    };
 
-            editor.putStringSet(key, asSet);
-        }else{
+    /** The type tag of values that SharedPreferences does not accept */
+    static final int TYPE_UNSUPPORTED = -1;
+
+    /** Determines the type tag of the given value, or {@link #TYPE_NONE} if it is null */
+    public static int getType(final Object o){
+        final int type = typeOf(o);
+        if(type==TYPE_UNSUPPORTED) {
             throw new IllegalArgumentException("SharedPreferences does not accept "
                     +o.getClass().getName()+ " objects");
         }
+        return type;
     }
 
-    /** Determines the type of the given object and saves it into the given DataMap accordingly */
-    public static void saveObject(final DataMap editor, final String key, final Object o){
-
+    /** Determines the type tag of the given value, or {@link #TYPE_UNSUPPORTED} */
+    static int typeOf(final Object o){
         if(o==null) {
-            editor.remove(key);
+            return TYPE_NONE;
         }else if(o instanceof String){
-            editor.putString(key, (String)o);
+            return TYPE_STRING;
         }else if(o instanceof Integer){
-            editor.putInt(key, (Integer)o);
+            return TYPE_INT;
         }else if(o instanceof Boolean){
-            editor.putBoolean(key, (Boolean)o);
+            return TYPE_BOOLEAN;
         }else if(o instanceof Long){
-            editor.putLong(key, (Long)o);
+            return TYPE_LONG;
         }else if(o instanceof Float){
-            editor.putFloat(key, (Float)o);
-        }else if(o instanceof Set){
-            final ArrayList asList = new ArrayList();
-            asList.addAll((Set) o);
-            editor.putStringArrayList(key, asList);
+            return TYPE_FLOAT;
+        }else if(o instanceof Collection){
+            return TYPE_STRING_SET;
         }else{
-            throw new IllegalArgumentException("SharedPreferences does not accept "
-                    +o.getClass().getName()+ " objects");
+            return TYPE_UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Determines the type that a value received without a type tag is closest to,
+     * including types that DataMap accepts but SharedPreferences does not.
+     */
+    static int closestType(final Object o){
+        if(o instanceof Short || o instanceof Byte){
+            return TYPE_INT;
+        }else if(o instanceof Double){
+            return TYPE_FLOAT;
+        }else if(o instanceof String[]){
+            return TYPE_STRING_SET;
+        }
+        return typeOf(o);
+    }
+
+    /**
+     * Converts the given value to the given type, if it can be represented in that type.
+     * Whole numbers convert between int and long when they are in range, and to float
+     * when they are exactly representable. Doubles convert to float, and string lists
+     * and arrays to string sets, without being copied.
+     *
+     * @return The converted value, or null if it can't be converted.
+     */
+    static Object convert(final Object o, final int type){
+        if(o==null){
+            return null;
+        }
+
+        switch(type){
+            case TYPE_STRING:
+                return o instanceof String ? o : null;
+            case TYPE_BOOLEAN:
+                return o instanceof Boolean ? o : null;
+            case TYPE_INT:
+                if(o instanceof Integer){
+                    return o;
+                }else if(o instanceof Long || o instanceof Short || o instanceof Byte){
+                    final long value = ((Number) o).longValue();
+                    return value==(int) value ? Integer.valueOf((int) value) : null;
+                }
+                return null;
+            case TYPE_LONG:
+                if(o instanceof Long){
+                    return o;
+                }else if(o instanceof Integer || o instanceof Short || o instanceof Byte){
+                    return ((Number) o).longValue();
+                }
+                return null;
+            case TYPE_FLOAT:
+                if(o instanceof Float){
+                    return o;
+                }else if(o instanceof Double){
+                    return ((Double) o).floatValue();
+                }else if(o instanceof Integer || o instanceof Long){
+                    final long value = ((Number) o).longValue();
+                    return value==(long) (float) value ? Float.valueOf(value) : null;
+                }
+                return null;
+            case TYPE_STRING_SET:
+                if(o instanceof Collection){
+                    return asStringSet(o);
+                }else if(o instanceof String[]){
+                    return new CollectionSet(Arrays.asList((String[]) o));
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads a single value from the given preference file, assuming that it has
+     * the given type. Unlike {@link SharedPreferences#getAll()}, this does not copy the file.
+     *
+     * @return The value, or null if the file has no value for the key.
+     * @throws ClassCastException if the stored value has a different type.
+     */
+    public static Object getObject(final SharedPreferences prefs, final String key, final int type){
+        switch(type){
+            case TYPE_STRING:
+                return prefs.getString(key, null);
+            case TYPE_STRING_SET:
+                return prefs.getStringSet(key, null);
+            case TYPE_NONE:
+                return null;
+        }
+
+        // Primitive getters return a default value for missing keys
+        if(!prefs.contains(key)){
+            return null;
+        }
+
+        switch(type){
+            case TYPE_INT:
+                return prefs.getInt(key, 0);
+            case TYPE_BOOLEAN:
+                return prefs.getBoolean(key, false);
+            case TYPE_LONG:
+                return prefs.getLong(key, 0);
+            case TYPE_FLOAT:
+                return prefs.getFloat(key, 0);
+            default:
+                throw new IllegalArgumentException("Unknown type "+type);
+        }
+    }
+
+    /**
+     * Reads a single value of unknown type from the given preference file,
+     * by trying each type's getter in turn.
+     *
+     * @return The value, or null if the file has no value for the key.
+     */
+    public static Object getObject(final SharedPreferences prefs, final String key){
+        if(!prefs.contains(key)){
+            return null;
+        }
+
+        for(int type:PROBE_ORDER){
+            try {
+                final Object value = getObject(prefs, key, type);
+                if(value!=null) {
+                    return value;
+                }
+            }catch (ClassCastException e){
+                // Try the next type
+            }
         }
+
+        // Removed while probing
+        return null;
+    }
+
+    /**
+     * Determines the type of the given object and saves it into
+     * the given preference file accordingly
+     */
+    public static void saveObject(final SharedPreferences.Editor editor,
+                            final String key,
+                            final Object o){
+        saveObject(editor, key, getType(o), o);
+    }
+
+    /**
+     * Saves a value of the given type into the given preference file. String sets may be
+     * given as any collection of strings, and are not copied.
+     *
+     * @param type  The type tag of the value, or {@link #TYPE_NONE} to remove the key.
+     */
+    public static void saveObject(final SharedPreferences.Editor editor, final String key,
+                                  final int type, final Object o){
+        switch(type){
+            case TYPE_NONE:
+                editor.remove(key);
+                break;
+            case TYPE_STRING:
+                editor.putString(key, (String) o);
+                break;
+            case TYPE_INT:
+                editor.putInt(key, (Integer) o);
+                break;
+            case TYPE_BOOLEAN:
+                editor.putBoolean(key, (Boolean) o);
+                break;
+            case TYPE_LONG:
+                editor.putLong(key, (Long) o);
+                break;
+            case TYPE_FLOAT:
+                editor.putFloat(key, (Float) o);
+                break;
+            case TYPE_STRING_SET:
+                editor.putStringSet(key, asStringSet(o));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type "+type);
+        }
+    }
+
+    /** Determines the type of the given object and saves it into the given DataMap accordingly */
+    public static void saveObject(final DataMap editor, final String key, final Object o){
+        saveObject(editor, key, getType(o), o);
+    }
+
+    /**
+     * Saves a value of the given type into the given DataMap. String sets are
+     * saved as string lists, and are only copied if they aren't already lists.
+     *
+     * @param type  The type tag of the value, or {@link #TYPE_NONE} to remove the key.
+     */
+    public static void saveObject(final DataMap editor, final String key, final int type, final Object o){
+        switch(type){
+            case TYPE_NONE:
+                editor.remove(key);
+                break;
+            case TYPE_STRING:
+                editor.putString(key, (String) o);
+                break;
+            case TYPE_INT:
+                editor.putInt(key, (Integer) o);
+                break;
+            case TYPE_BOOLEAN:
+                editor.putBoolean(key, (Boolean) o);
+                break;
+            case TYPE_LONG:
+                editor.putLong(key, (Long) o);
+                break;
+            case TYPE_FLOAT:
+                editor.putFloat(key, (Float) o);
+                break;
+            case TYPE_STRING_SET:
+                editor.putStringArrayList(key, asStringList(o));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type "+type);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> asStringSet(final Object o){
+        if(o instanceof Set){
+            return (Set<String>) o;
+        }
+        return new CollectionSet((Collection<String>) o);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<String> asStringList(final Object o){
+        if(o instanceof ArrayList){
+            return (ArrayList<String>) o;
+        }
+        return new ArrayList<>((Collection<String>) o);
+    }
+
+    /**
+     * A read-only view of a collection of distinct strings as a set, so that string lists
+     * received from a DataMap can be saved without copying them. The editor makes its own copy.
+     */
+    private static final class CollectionSet extends AbstractSet<String> {
+
+        private final Collection<String> mElements;
+
+        CollectionSet(final Collection<String> elements){
+            mElements = elements;
+        }
+
+        @Override public Iterator<String> iterator() {
+            return Collections.unmodifiableCollection(mElements).iterator();
+        }
+
+        @Override public int size() {
+            return mElements.size();
+        }
+
     }
 
 }
@@ -0,0 +1,253 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes large preference values compactly for transmission.
+ *
+ * Strings and string sets are written as UTF-8 bytes, and compressed when they
+ * are larger than a threshold. String sets are written directly from the set,
+ * without first being copied into a list. Encoded values are stored as a nested
+ * DataMap, which SharedPreferences values never are, so they can be recognised
+ * and decoded regardless of whether the receiver has enabled encoding.
+ *
+ * Values too large to fit in a DataApi item are always encoded, compressed, and
+ * moved into an Asset, which the receiver decodes as it is streamed.
+ */
+final class ValueCodec {
+
+    // DataMap key names for encoded values
+    private static final String KEY_ENCODING = "encoding";
+    private static final String KEY_DATA = "data";
+    private static final String KEY_ASSET = "asset";
+
+    /**
+     * The encoded size above which values are sent as an Asset. DataApi
+     * items are limited to 100KB, which must also fit the rest of the item.
+     */
+    static final int ASSET_THRESHOLD_BYTES = 64 * 1024;
+
+    /** The most bytes a character takes in UTF-8 */
+    private static final int MAX_UTF8_BYTES_PER_CHAR = 3;
+
+    // Encodings, combined with the compressed flag
+    private static final int ENCODING_STRING = 1;
+    private static final int ENCODING_STRING_SET = 2;
+    private static final int FLAG_COMPRESSED = 0x10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ValueCodec(){}
+
+    /**
+     * Saves the given value into the DataMap, encoding it if compact encoding
+     * is enabled in the given options.
+     *
+     * @param type  The value's {@link TypeUtil} type tag.
+     */
+    static void saveObject(@NonNull final DataMap dataMap, @NonNull final String key, final int type,
+                           @Nullable final Object value, @NonNull final SyncOptions options){
+        // Only strings and string sets are encoded
+        if(type!=TypeUtil.TYPE_STRING && type!=TypeUtil.TYPE_STRING_SET){
+            TypeUtil.saveObject(dataMap, key, type, value);
+            return;
+        }
+
+        // Values that can't exceed the item size limit, when not encoding, take the fast path
+        if(!options.isCompactEncoding() && estimateMaxSize(type, value)<ASSET_THRESHOLD_BYTES){
+            TypeUtil.saveObject(dataMap, key, type, value);
+            return;
+        }
+
+        final int threshold = options.isCompactEncoding()
+                ?options.getCompressionThresholdBytes()
+                :ASSET_THRESHOLD_BYTES;
+        try {
+            if (type==TypeUtil.TYPE_STRING) {
+                final byte[] utf8 = ((String) value).getBytes(UTF_8);
+
+                // Small strings are left as they are
+                if (utf8.length < threshold) {
+                    dataMap.putString(key, (String) value);
+                } else {
+                    dataMap.putDataMap(key, wrap(ENCODING_STRING | FLAG_COMPRESSED, compress(utf8)));
+                }
+            } else {
+                final byte[] encoded = encodeStringSet((Collection) value);
+
+                if (encoded.length < threshold) {
+                    if(options.isCompactEncoding()) {
+                        dataMap.putDataMap(key, wrap(ENCODING_STRING_SET, encoded));
+                    }else{
+                        TypeUtil.saveObject(dataMap, key, type, value);
+                    }
+                } else {
+                    dataMap.putDataMap(key, wrap(ENCODING_STRING_SET | FLAG_COMPRESSED, compress(encoded)));
+                }
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Whether the given value, read from a DataMap, is stored in an Asset, so decoding it blocks */
+    static boolean isAsset(@Nullable final Object value){
+        return value instanceof DataMap && ((DataMap) value).getAsset(KEY_ASSET)!=null;
+    }
+
+    /**
+     * Decodes a value read from a DataMap, if it was encoded.
+     * Values that were not encoded are returned unchanged.
+     *
+     * @param transport The transport to read the value's Asset from, if it has one.
+     *                  Blocks while the Asset is read.
+     */
+    @Nullable static Object decode(@Nullable final Object value, @NonNull final Transport transport){
+        if(!(value instanceof DataMap)){
+            return value;
+        }
+
+        final DataMap wrapper = (DataMap) value;
+        final int encoding = wrapper.getInt(KEY_ENCODING);
+        final byte[] data = wrapper.getByteArray(KEY_DATA);
+        final Asset asset = wrapper.getAsset(KEY_ASSET);
+
+        try {
+            if(data!=null) {
+                return decode(encoding, new ByteArrayInputStream(data), data.length);
+            }else if(asset!=null){
+                final InputStream in = transport.openAsset(asset);
+                try {
+                    return decode(encoding, in, 0);
+                } finally {
+                    in.close();
+                }
+            }else{
+                throw new IllegalArgumentException("Encoded value has no data");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to decode value", e);
+        }
+    }
+
+    /**
+     * Decodes a value from the given stream, without first reading the whole stream into memory.
+     *
+     * @param sizeHint  The expected size of the stream, or 0 if unknown.
+     */
+    @NonNull static Object decode(final int encoding, @NonNull InputStream in, final int sizeHint)
+            throws IOException {
+        int capacity = sizeHint;
+        if((encoding & FLAG_COMPRESSED)!=0){
+            in = new InflaterInputStream(in);
+            capacity *= 4;
+        }
+
+        switch(encoding & ~FLAG_COMPRESSED){
+            case ENCODING_STRING:
+                return new String(readFully(in, capacity), UTF_8);
+            case ENCODING_STRING_SET:
+                return decodeStringSet(new DataInputStream(in));
+            default:
+                throw new IOException("Unknown encoding "+encoding);
+        }
+    }
+
+    /** Wraps encoded data, moving it into an Asset if it is too large for the item */
+    private static DataMap wrap(final int encoding, @NonNull final byte[] data){
+        final DataMap wrapper = new DataMap();
+        wrapper.putInt(KEY_ENCODING, encoding);
+
+        if(data.length<ASSET_THRESHOLD_BYTES) {
+            wrapper.putByteArray(KEY_DATA, data);
+        }else{
+            wrapper.putAsset(KEY_ASSET, Asset.createFromBytes(data));
+        }
+        return wrapper;
+    }
+
+    /** The largest size the given value could have when sent without encoding */
+    private static long estimateMaxSize(final int type, @Nullable final Object value){
+        if(type==TypeUtil.TYPE_STRING){
+            return (long) ((String) value).length() * MAX_UTF8_BYTES_PER_CHAR;
+        }
+
+        long size = 0;
+        for(Object element:(Collection) value){
+            size += (long) String.valueOf(element).length() * MAX_UTF8_BYTES_PER_CHAR + 4;
+        }
+        return size;
+    }
+
+    /** Writes the number of strings, then the length and UTF-8 bytes of each */
+    private static byte[] encodeStringSet(@NonNull final Collection<?> set) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(set.size());
+        for(Object element:set){
+            final byte[] utf8 = String.valueOf(element).getBytes(UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static Set<String> decodeStringSet(@NonNull final DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final Set<String> set = new HashSet<>(Math.max(16, (int) (size / .75f) + 1));
+
+        byte[] buffer = new byte[64];
+        for(int i = 0; i < size; i++){
+            final int length = in.readInt();
+            if(length>buffer.length){
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            set.add(new String(buffer, 0, length, UTF_8));
+        }
+
+        return set;
+    }
+
+    private static byte[] compress(@NonNull final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        final OutputStream out = new DeflaterOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFully(@NonNull final InputStream in, final int capacity) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(capacity, 32));
+        final byte[] buffer = new byte[8192];
+
+        int read;
+        while((read = in.read(buffer))!=-1){
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+}
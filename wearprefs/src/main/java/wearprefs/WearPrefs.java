@@ -24,44 +24,99 @@ package wearprefs;
 // SOFTWARE.
 //
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.net.Uri;
-import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.DataEvent;
-import com.google.android.gms.wearable.DataEventBuffer;
-import com.google.android.gms.wearable.DataItem;
-import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.DataMap;
-import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.NodeApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.Wearable;
 
-import java.util.HashMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  */
-public final class WearPrefs implements SharedPreferences.OnSharedPreferenceChangeListener, GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, DataApi.DataListener, NodeApi.NodeListener {
+public final class WearPrefs implements SharedPreferences.OnSharedPreferenceChangeListener, Transport.Listener {
+
+    private static final String TAG = "WearPrefs";
 
     // DataMap key names for transmitting preference values
     private static final String KEY_FILE_NAME = "file_name";
     private static final String KEY_KEY = "key";
     private static final String KEY_VALUE = "value";
+    private static final String KEY_TYPE = "type";
+    private static final String KEY_SENT_AT = "sent_at";
+    private static final String KEY_CLOCK = "clock";
+    private static final String KEY_ORIGIN = "origin";
+
+    // DataMap key names for transmitting batches of preference values
+    private static final String KEY_VALUES = "values";
+    private static final String KEY_TYPES = "types";
+    private static final String KEY_CLOCKS = "clocks";
+    private static final String KEY_BUCKETS = "buckets";
+    private static final String KEY_ROOT = "root";
+    private static final String KEY_NODE_ID = "node_id";
+    private static final String KEY_REMOVED = "removed";
+
+    /** The type of values sent by versions that didn't send a type tag */
+    private static final int UNTAGGED = -1;
+
+    // Results of saving a received value
+    private static final int SAVED = 0;
+    private static final int ALREADY_SYNCED = 1;
+    private static final int STALE = 2;
+    private static final int IGNORED = 3;
+    private static final int DEFERRED = 4;
 
     // Path prefixes, for constructing datamap paths
     private static final String PATH_PREFIX_DEFAULT = "/default_wearprefs_";
     private static final String PATH_PREFIX = "/wearprefs_";
+    private static final String PATH_PREFIX_BATCH = "/batch";
+    private static final String PATH_PREFIX_DIGEST = "/digest";
+
+    /** The maximum time to wait for queued inbound work when shutting down */
+    private static final long RELEASE_TIMEOUT_MILLIS = 5000;
+
+    /** The maximum time to wait for this device's previous batch to be read, before sending without it */
+    private static final long BATCH_READ_TIMEOUT_MILLIS = 10000;
+
+    /** How long removed keys are remembered for, before their DataApi items are deleted */
+    private static final long TOMBSTONE_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /** How often expired tombstones are looked for */
+    private static final long COMPACTION_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** How long changes are collected for before a file's digest is published again */
+    private static final long DIGEST_PUBLISH_DELAY_MILLIS = 1000;
+
+    /**
+     * The encoded size above which a file's batch is moved into per-key items and started
+     * again, so that the batch item stays within the DataApi's 100KB item limit
+     */
+    private static final int BATCH_MAX_BYTES = 80 * 1024;
+
+    /** The directory of outbound journals, within the app's files directory */
+    private static final String JOURNAL_DIR = "wearprefs";
 
 
     /**
@@ -70,7 +125,7 @@ public final class WearPrefs implements SharedPreferences.OnSharedPreferenceChan
      * @param context   The context containing the SharedPreferences file.
      */
     public static void init(@NonNull final Context context){
-        getInstance(context).initDefault();
+        init(context, SyncOptions.DEFAULT);
     }
 
     /**
@@ -80,217 +135,1753 @@ public final class WearPrefs implements SharedPreferences.OnSharedPreferenceChan
      * @param prefsFileName The name of the file to sync.
      */
     public static void init(@NonNull final Context context, @NonNull final String prefsFileName){
-        getInstance(context).initFor(prefsFileName);
+        init(context, prefsFileName, SyncOptions.DEFAULT);
+    }
+
+    /**
+     * Initializes WearPrefs synchronization for the default SharedPreferences file.
+     *
+     * @param context   The context containing the SharedPreferences file.
+     * @param options   Options controlling how the file is synchronized.
+     */
+    public static void init(@NonNull final Context context, @NonNull final SyncOptions options){
+        final long start = System.nanoTime();
+        final SharedPreferences prefs = options.isSnapshotStore()
+                ?SnapshotPreferences.getDefault(context)
+                :PreferenceManager.getDefaultSharedPreferences(context);
+        getInstance(context).initFor(prefs, null, options, start);
+    }
+
+    /**
+     * Initializes WearPrefs synchronization for the SharedPreferences file with the given name.
+     *
+     * @param context       The context containing the SharedPreferences file.
+     * @param prefsFileName The name of the file to sync.
+     * @param options       Options controlling how the file is synchronized.
+     */
+    public static void init(@NonNull final Context context, @NonNull final String prefsFileName,
+                            @NonNull final SyncOptions options){
+        final long start = System.nanoTime();
+        final SharedPreferences prefs = options.isSnapshotStore()
+                ?SnapshotPreferences.get(context, prefsFileName)
+                :context.getSharedPreferences(prefsFileName, Context.MODE_PRIVATE);
+
+        getInstance(context).initFor(prefs, prefsFileName, options, start);
+    }
+
+    /**
+     * Sets the transport used to communicate with other devices, instead of the Wearable DataApi.
+     * Must be called before WearPrefs is first initialized.
+     *
+     * @param transport The transport to use.
+     */
+    public static void setTransport(@NonNull final Transport transport){
+        synchronized (WearPrefs.class) {
+            if(sInstance!=null){
+                throw new IllegalStateException("WearPrefs has already been initialized");
+            }
+            sTransport = transport;
+        }
+    }
+
+    /**
+     * Retrieves a snapshot of synchronization counters since WearPrefs was initialized.
+     *
+     * @return The counters, or null if WearPrefs has not been initialized.
+     */
+    @Nullable public static SyncMetrics getMetrics(){
+        final WearPrefs instance = sInstance;
+        return instance==null ? null : instance.snapshotMetrics();
+    }
+
+    /**
+     * Sets a listener to be notified of synchronization events as they happen,
+     * for exporting to other telemetry. Must be called after WearPrefs is initialized.
+     *
+     * @param listener  The listener to notify, or null to stop notifying.
+     */
+    public static void setMetricsListener(@Nullable final SyncMetricsListener listener){
+        final WearPrefs instance = sInstance;
+        if(instance==null){
+            throw new IllegalStateException("WearPrefs has not been initialized");
+        }
+        instance.mMetrics.setListener(listener);
+    }
+
+    /**
+     * Adds a listener to values received from other devices for the given file. Values saved
+     * together, such as those of a batch, are delivered as a single event, with their
+     * previous values. Must be called after the file is initialized.
+     *
+     * @param prefsFileName The name of the file, or null for the default SharedPreferences file.
+     * @param executor      The executor to notify the listener on.
+     * @param listener      The listener to notify.
+     */
+    public static void addRemoteChangeListener(@Nullable final String prefsFileName, @NonNull final Executor executor,
+                                               @NonNull final RemoteChangeListener listener){
+        getInitializedFile(prefsFileName).changeListeners.put(listener, executor);
+    }
+
+    /**
+     * Stops notifying a listener added with {@link #addRemoteChangeListener(String, Executor, RemoteChangeListener)}.
+     *
+     * @param prefsFileName The name of the file, or null for the default SharedPreferences file.
+     */
+    public static void removeRemoteChangeListener(@Nullable final String prefsFileName,
+                                                  @NonNull final RemoteChangeListener listener){
+        getInitializedFile(prefsFileName).changeListeners.remove(listener);
+    }
+
+    @NonNull private static SyncedFile getInitializedFile(@Nullable final String prefsFileName){
+        final WearPrefs instance = sInstance;
+        if(instance==null){
+            throw new IllegalStateException("WearPrefs has not been initialized");
+        }
+
+        final SyncedFile file = instance.getFile(prefsFileName);
+        if(file==null){
+            throw new IllegalStateException("File "+prefsFileName+" has not been initialized");
+        }
+        return file;
+    }
+
+    /** The synchronization state of the given file, or null if it hasn't been initialized */
+    @Nullable SyncedFile getFile(@Nullable final String prefsFileName){
+        return mSharedPreferenceCache.get(getPathPrefix(prefsFileName));
+    }
+
+    /**
+     * Connects to other devices and loads their values, if only lazily initialized files
+     * are synchronized and none of them have changed yet. Connects on a background thread.
+     */
+    public static void connect(){
+        final WearPrefs instance = sInstance;
+        if(instance==null){
+            throw new IllegalStateException("WearPrefs has not been initialized");
+        }
+        instance.ensureConnected();
+    }
+
+    /**
+     * Sends all changes made so far, including batched and deferred changes, without waiting
+     * for their batch window or delay. The returned future completes once they have all been
+     * written to the DataApi, for example so that a settings screen can wait for its changes
+     * to be sent before closing.
+     *
+     * @return A future completing once all changes made before this call have been written.
+     * It completes with false if the transport is disconnected, or if changes are still
+     * journaled to be sent once it reconnects.
+     */
+    @NonNull public static SyncFuture flush(){
+        final WearPrefs instance = sInstance;
+        if(instance==null){
+            throw new IllegalStateException("WearPrefs has not been initialized");
+        }
+        return instance.flushPending();
+    }
+
+    /**
+     * Stops synchronization of all SharedPreferences files and disconnects from the Wearable API.
+     * Changes that have already been queued are still sent before disconnecting.
+     */
+    public static void shutdown(){
+        final WearPrefs instance;
+        synchronized (WearPrefs.class) {
+            instance = sInstance;
+            sInstance = null;
+        }
+
+        if(instance!=null){
+            instance.release();
+        }
     }
 
 
 
     /** Instance singleton */
-    private static WearPrefs sInstance = null;
+    private static volatile WearPrefs sInstance = null;
+
+    /** The transport to create the singleton with, or null to use the Wearable DataApi */
+    private static Transport sTransport = null;
 
     /** Retrieves the instance singleton, creating it if necessary */
     private static WearPrefs getInstance(@NonNull final Context context){
-        if(sInstance==null){
-            sInstance = new WearPrefs(context);
+        WearPrefs instance = sInstance;
+        if(instance==null){
+            synchronized (WearPrefs.class) {
+                instance = sInstance;
+                if(instance==null) {
+                    instance = new WearPrefs(sTransport!=null
+                            ?sTransport
+                            :new WearableTransport(context),
+                            context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
         }
 
-        return sInstance;
+        return instance;
     }
 
 
 
-    @NonNull private final Context context;
+    /**
+     * A cache for synchronized SharedPreferences files, so that they may be
+     * retrieved by looking up their DataApi path prefix.
+     */
+    @NonNull private final ConcurrentMap<String, SyncedFile> mSharedPreferenceCache = new ConcurrentHashMap<>();
+
+    /** Synchronized files by their SharedPreferences instance, for finding the file of a change */
+    @NonNull private final ConcurrentMap<SharedPreferences, SyncedFile> mFilesByPrefs = new ConcurrentHashMap<>();
+
+    @NonNull private final Transport mTransport;
+
+    /** Serial lane for sending local changes to the DataApi */
+    @NonNull private final SyncDispatcher mOutbound = new SyncDispatcher("WearPrefs-outbound");
+
+    /** Serial lane for applying DataApi changes to local SharedPreferences */
+    @NonNull private final SyncDispatcher mInbound = new SyncDispatcher("WearPrefs-inbound");
+
+    /** Serial lane for reading the Assets of received values, so that the inbound lane doesn't block on them */
+    @NonNull private final SyncDispatcher mAssets = new SyncDispatcher("WearPrefs-assets");
+
+    /**
+     * DataApi paths that already have an outbound update queued, with the time of the
+     * first queued change. The queued update reads the latest value when it runs,
+     * so further changes to the same key are coalesced.
+     */
+    @NonNull private final ConcurrentMap<String, Long> mPendingOutboundPaths = new ConcurrentHashMap<>();
+
+    @NonNull private final MetricsRecorder mMetrics = new MetricsRecorder();
+
+    /** Locally cached key sets, maintained as keys are sent */
+    @NonNull private final KeySetIndex mKeySetIndex;
+
+    /** Whether a write of new keys in the key set index is already queued */
+    @NonNull private final AtomicBoolean mKeySetFlushQueued = new AtomicBoolean();
+
+    /** Whether connecting the transport has been queued */
+    @NonNull private final AtomicBoolean mConnectRequested = new AtomicBoolean();
+
+    /** Whether periodic compaction of removed keys has been scheduled */
+    @NonNull private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+
+    /** Whether the transport is connected, so that changes can be written */
+    private volatile boolean mConnected;
+
+    /** The context whose files directory holds the outbound journals, or null to use {@link #mJournalDir} */
+    @Nullable private final Context mContext;
 
     /**
-     * A cache for SharedPreferences objects, so that they may be
-     * retrieved by looking up their DataApi path.
+     * The directory of the files' outbound journals, or null to only keep them in memory.
+     * Resolved from {@link #mContext} when first needed. Only accessed on the outbound lane.
      */
-    @NonNull private final Map<String, SharedPreferences> mSharedPreferenceCache = new HashMap<>();
+    @Nullable private File mJournalDir;
+
+    /** When connecting the transport was first requested, by {@link System#nanoTime()} */
+    private volatile long mConnectRequestedAtNanos;
+
+    /** Orders changes made on this device and received from others */
+    @NonNull private final HybridClock mClock = new HybridClock();
+
+    /** Identifies changes made by this instance, to break ties between changes with the same clock */
+    @NonNull private final String mOrigin = UUID.randomUUID().toString();
 
-    @NonNull private final GoogleApiClient mApiClient;
+    /** Whether a resync is running. Resync state is only accessed on the inbound lane. */
+    private boolean mResyncRunning;
 
-    private WearPrefs(@NonNull final Context context){
-        this.context = context;
+    /** Whether a resync of all devices has been requested since the running one started */
+    private boolean mFullResyncPending;
 
-        // build and connect to the Wearable API
-        mApiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
-        mApiClient.connect();
+    /** Devices whose values have been requested since the running resync started */
+    @NonNull private final Set<String> mPendingResyncNodes = new HashSet<>();
+
+    /** Files whose values have been requested from all devices since the running resync started */
+    @NonNull private final Set<SyncedFile> mPendingResyncFiles = new LinkedHashSet<>();
+
+    /** Devices whose values have been loaded since they last connected */
+    @NonNull private final Set<String> mReconciledNodes = new HashSet<>();
+
+    /** Writes to the DataApi that have not yet completed, including batches waiting to be sent */
+    @NonNull private final Set<SyncFuture> mPendingPuts =
+            Collections.newSetFromMap(new ConcurrentHashMap<SyncFuture, Boolean>());
+
+    /**
+     * Creates an instance that synchronizes through the given transport. Instances other than
+     * the singleton allow several synchronized devices to be simulated in one process.
+     */
+    WearPrefs(@NonNull final Transport transport){
+        this(transport, null, null);
     }
 
-    private void initDefault(){
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        initFor(prefs, null);
+    /**
+     * Creates an instance that synchronizes through the given transport, and journals changes
+     * made while disconnected in the given directory, so that they survive the process.
+     */
+    WearPrefs(@NonNull final Transport transport, @NonNull final File journalDir){
+        this(transport, null, journalDir);
     }
 
-    private void initFor(@NonNull final String prefsFileName){
-        final SharedPreferences prefs = context.getSharedPreferences(
-                prefsFileName,
-                Context.MODE_PRIVATE);
+    /**
+     * Creates an instance that synchronizes through the given transport, and journals changes
+     * made while disconnected in the context's files directory. The directory is found on
+     * the outbound lane, as doing so reads the disk.
+     */
+    WearPrefs(@NonNull final Transport transport, @NonNull final Context context){
+        this(transport, context, null);
+    }
 
-        initFor(prefs, prefsFileName);
+    private WearPrefs(@NonNull final Transport transport, @Nullable final Context context,
+                      @Nullable final File journalDir){
+        mTransport = transport;
+        mContext = context;
+        mJournalDir = journalDir;
+        mKeySetIndex = new KeySetIndex(transport, mMetrics, new Runnable() {
+            @Override public void run() {
+                queueKeySetFlush();
+            }
+        });
     }
 
-    private void initFor(@NonNull final SharedPreferences prefs, @Nullable final String prefsFileName){
+    /**
+     * Starts synchronizing the given preference file. Unless the file is lazy,
+     * the transport is connected on a background thread.
+     *
+     * @param startNanos    When initialization started, by {@link System#nanoTime()}.
+     */
+    void initFor(@NonNull final SharedPreferences prefs, @Nullable final String prefsFileName,
+                 @NonNull final SyncOptions options, final long startNanos){
         final String pathPrefix = getPathPrefix(prefsFileName);
 
-        prefs.edit().putString(KEY_FILE_NAME, prefsFileName).apply();
-        mSharedPreferenceCache.put(pathPrefix, prefs);
+        final SyncedFile file = new SyncedFile(prefs, prefsFileName, pathPrefix, options);
+
+        // Already initialized
+        if(mSharedPreferenceCache.putIfAbsent(pathPrefix, file)!=null){
+            return;
+        }
+
+        // Queued before connecting, so that no received values are saved before the journal is restored,
+        // and before listening, so that no changes are journaled before it
+        mOutbound.post(new Runnable() {
+            @Override public void run() {
+                restoreJournal(file);
+
+                // Not loaded by the resync made on connection
+                if(mConnected){
+                    queueResync(file);
+                }
+            }
+        });
+
+        mFilesByPrefs.put(prefs, file);
         prefs.registerOnSharedPreferenceChangeListener(this);
+
+        if(!options.isLazy()){
+            ensureConnected();
+        }
+        mMetrics.initialized(System.nanoTime() - startNanos);
     }
 
-    @Override public void onConnected(Bundle bundle) {
-        Wearable.DataApi.addListener(mApiClient, this);
-        Wearable.NodeApi.addListener(mApiClient, this);
+    /** Queues connection of the transport, if it hasn't been already */
+    private void ensureConnected(){
+        if(mConnectRequested.compareAndSet(false, true)){
+            mConnectRequestedAtNanos = System.nanoTime();
+            mOutbound.post(new Runnable() {
+                @Override public void run() {
+                    mTransport.connect(WearPrefs.this);
+                }
+            });
+        }
+    }
+
+    @Override public void onConnected() {
+        mMetrics.connected(System.nanoTime() - mConnectRequestedAtNanos);
+        mConnected = true;
+
+        mOutbound.post(new Runnable() {
+            @Override public void run() {
+                replayJournals();
+            }
+        });
+
+        if(mCompactionScheduled.compareAndSet(false, true)){
+            scheduleCompaction(0);
+        }
 
-        new Thread(){
-            public void run(){
-                copyAllPreferencesToLocal();
+        mInbound.post(new Runnable() {
+            @Override public void run() {
+                // Other devices may have changed values while this one was disconnected
+                mReconciledNodes.clear();
+                mPendingResyncNodes.clear();
+                mPendingResyncFiles.clear();
+                mFullResyncPending = true;
+                startNextResync();
             }
-        }.start();
+        });
+    }
+
+    @Override public void onConnectionSuspended() {
+        // Changes are journaled until the transport reconnects
+        mConnected = false;
+    }
+
+    /** Sends the changes journaled while the transport was disconnected, for every file */
+    private void replayJournals(){
+        for(SyncedFile file:mSharedPreferenceCache.values()) {
+            replayJournal(file);
+        }
     }
 
-    @Override public void onPeerConnected(Node node) {
-        new Thread(){
-            public void run(){
-                copyAllPreferencesToLocal();
+    /**
+     * Opens the file's journal, and restores the versions of changes journaled by a previous
+     * process, so that older values received before the journal is replayed don't replace them.
+     * Replays the journal if the transport is already connected.
+     */
+    private void restoreJournal(final SyncedFile file){
+        if(mJournalDir==null && mContext!=null){
+            mJournalDir = new File(mContext.getFilesDir(), JOURNAL_DIR);
+        }
+        if(mJournalDir!=null){
+            file.journal = new OutboundJournal(new File(mJournalDir,
+                    (file.fileName==null ? "default" : file.fileName) + ".journal"));
+        }
+
+        for(Map.Entry<String, Long> entry:file.journal.getClocks().entrySet()){
+            final long clock = entry.getValue();
+
+            // Changed again by this process, or journaled without a version
+            if(clock==0 || file.getVersion(entry.getKey())!=null){
+                continue;
             }
-        }.start();
+            mClock.update(clock);
+            file.setVersion(entry.getKey(), new HybridClock.Version(clock, mOrigin));
+        }
+
+        if(mConnected){
+            replayJournal(file);
+        }
     }
 
-    private void copyAllPreferencesToLocal(){
-        for(String pathPrefix:mSharedPreferenceCache.keySet()) {
-            copyAllPreferencesToLocalForPathPrefix(pathPrefix);
+    /**
+     * Sends the changes journaled while the transport was disconnected, as they would have
+     * been sent while connected. Only the latest value of each key is sent, and
+     * batched and deferred keys are sent together in a single batch. Keys stay in the
+     * journal until their writes succeed.
+     */
+    private void replayJournal(final SyncedFile file){
+        if(file.journal.isEmpty()){
+            return;
+        }
+
+        final long replayedAtNanos = System.nanoTime();
+        boolean keySetChanged = false;
+
+        for(String key:file.journal.replay()){
+            if(file.options.isDeferred(key) || (file.options.isBatching() && !file.options.isImmediate(key))){
+                if(file.pendingBatchKeys.isEmpty()){
+                    file.pendingBatchChangedAtNanos = replayedAtNanos;
+                }
+                file.pendingBatchKeys.add(key);
+                continue;
+            }
+
+            final boolean sent;
+            synchronized (file.lock){
+                sent = updateValueRemote(file, key, file.pathPrefix + key, replayedAtNanos);
+            }
+            if(sent){
+                keySetChanged |= updateKeySet(file, key, file.prefs.contains(key));
+            }
+        }
+
+        if(keySetChanged){
+            queueKeySetFlush();
         }
+        flushBatch(file);
     }
 
-    private void copyAllPreferencesToLocalForPathPrefix(String pathPrefix){
-        for(String key:KeySetUtil.getKeySet(mApiClient, pathPrefix)){
-            copyPreferenceToLocal(pathPrefix + key);
+    /** Records keys whose changes have not been sent, with the clocks of this device's changes to them */
+    private void journal(final SyncedFile file, final Collection<String> keys){
+        for(String key:keys){
+            final HybridClock.Version version = file.getVersion(key);
+            file.journal.append(key, version!=null && version.origin.equals(mOrigin) ? version.clock : 0);
         }
     }
 
-    private void copyPreferenceToLocal(final String path) {
-        final DataItemBuffer buffer = Wearable.DataApi.getDataItems(
-                mApiClient,
-                Uri.parse("wear:" + path))
-                .await();
+    /** Compacts the key sets once the given delay has passed, and then periodically */
+    private void scheduleCompaction(final long delayMillis){
+        mOutbound.postDelayed(new Runnable() {
+            @Override public void run() {
+                // Deletions can't be written while disconnected
+                if(mConnected) {
+                    compactKeySets();
+                }
+                scheduleCompaction(COMPACTION_INTERVAL_MILLIS);
+            }
+        }, delayMillis);
+    }
 
-        try {
-            copyPreferenceToLocal(buffer);
-        }finally {
-            buffer.release();
+    /**
+     * Drops expired tombstones from every file's key set, and deletes the DataApi items
+     * of the removed keys. By the time a tombstone expires, connected devices have received
+     * the removal, so the item only takes up space and slows resyncs down.
+     */
+    private void compactKeySets(){
+        final long removedBefore = System.currentTimeMillis() - TOMBSTONE_TTL_MILLIS;
+        boolean compacted = false;
+
+        for(SyncedFile file:mSharedPreferenceCache.values()) {
+            for(String key:mKeySetIndex.expireTombstones(file.pathPrefix, removedBefore)) {
+                compacted = true;
+
+                // Set again since, without being sent individually
+                if(file.prefs.contains(key)){
+                    continue;
+                }
+
+                mTransport.deleteDataMap(file.pathPrefix + key, null);
+
+                // Dropped from the batch item the next time it is sent
+                if(file.batchRemovedKeys.remove(key)){
+                    file.batchClocks.remove(key);
+                }
+            }
+        }
+
+        if(compacted){
+            queueKeySetFlush();
+        }
+    }
+
+    /**
+     * Queues publishing the file's digest, after a delay so that further changes are
+     * published together. The digest is only published once it has been computed.
+     */
+    private void queueDigestPublish(final SyncedFile file){
+        if(!file.digest.isLoaded() || !file.digestPublishQueued.compareAndSet(false, true)){
+            return;
         }
+
+        mOutbound.postDelayed(new Runnable() {
+            @Override public void run() {
+                file.digestPublishQueued.set(false);
+                publishDigest(file);
+            }
+        }, DIGEST_PUBLISH_DELAY_MILLIS);
     }
 
-    private void copyPreferenceToLocal(DataItemBuffer buffer) {
-        if (buffer.getCount() > 0) {
-            final DataMap map = DataMap.fromByteArray(buffer.get(0).getData());
-            loadPrefFromDataMap(map);
+    /** Writes the file's digest to the DataApi, for other devices to compare with when reconciling */
+    private void publishDigest(final SyncedFile file){
+        // Published again once reconnected and reconciled
+        if(!mConnected){
+            return;
         }
+
+        final long[] buckets = file.digest.getBuckets();
+
+        final DataMap dataMap = new DataMap();
+        dataMap.putString(KEY_FILE_NAME, file.fileName);
+        dataMap.putString(KEY_ORIGIN, mOrigin);
+        dataMap.putString(KEY_NODE_ID, mTransport.getLocalNodeId());
+        dataMap.putLongArray(KEY_BUCKETS, buckets);
+        dataMap.putLong(KEY_ROOT, FileDigest.rootOf(buckets));
+
+        put(file, getDigestPath(file.pathPrefix), dataMap, Collections.<String, Long>emptyMap());
     }
 
-    @Override public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
-                                                    final String updatedKey) {
+    @Override public void onPeerConnected(@NonNull final String nodeId) {
+        mInbound.post(new Runnable() {
+            @Override public void run() {
+                if(mReconciledNodes.contains(nodeId)){
+                    return;
+                }
+                mPendingResyncNodes.add(nodeId);
+                startNextResync();
+            }
+        });
+    }
 
-        // Ignore path preference changes, this is only used internally
-        if(updatedKey.equalsIgnoreCase(KEY_FILE_NAME)){
+    @Override public void onPeerDisconnected(@NonNull final String nodeId) {
+        mInbound.post(new Runnable() {
+            @Override public void run() {
+                // Its values may change before it reconnects
+                mReconciledNodes.remove(nodeId);
+            }
+        });
+    }
+
+    /** Queues loading the values of a single file from all devices, through the single resync lane */
+    private void queueResync(final SyncedFile file){
+        mInbound.post(new Runnable() {
+            @Override public void run() {
+                mPendingResyncFiles.add(file);
+                startNextResync();
+            }
+        });
+    }
+
+    /**
+     * Starts the next requested resync, unless one is already running. Requests made while a
+     * resync is running are collected, and served by a single resync once it has finished.
+     * A full resync reads the values of all devices, and serves the requests of every node
+     * and file that was pending when it started. Requests for files are served once no nodes
+     * are pending. Only accessed on the inbound lane.
+     */
+    private void startNextResync(){
+        if(mResyncRunning){
+            return;
+        }
+
+        final Set<String> nodeIds = new HashSet<>(mPendingResyncNodes);
+        mPendingResyncNodes.clear();
+
+        final boolean full = mFullResyncPending;
+        mFullResyncPending = false;
+
+        final List<SyncedFile> files;
+        final Set<String> sources;
+        if(full){
+            files = new ArrayList<>(mSharedPreferenceCache.values());
+            sources = Collections.<String>singleton(null);
+            mPendingResyncFiles.clear();
+        }else if(!nodeIds.isEmpty()){
+            files = new ArrayList<>(mSharedPreferenceCache.values());
+            sources = nodeIds;
+        }else if(!mPendingResyncFiles.isEmpty()){
+            files = new ArrayList<>(mPendingResyncFiles);
+            sources = Collections.<String>singleton(null);
+            mPendingResyncFiles.clear();
+        }else{
             return;
         }
 
-        new Thread(){
-            public void run(){
-                onSharedPreferenceChangedAsync(sharedPreferences, updatedKey);
+        mResyncRunning = true;
+        copyAllPreferencesToLocal(files, sources, new Runnable() {
+            @Override public void run() {
+                mReconciledNodes.addAll(nodeIds);
+                mResyncRunning = false;
+                startNextResync();
             }
-        }.start();
+        });
     }
 
-    private void onSharedPreferenceChangedAsync(final SharedPreferences sharedPreferences,
-                                                final String updatedKey) {
+    /**
+     * Loads the values of the given files from the given devices.
+     *
+     * @param nodeIds   The devices to load values from, or a single null to load from all devices.
+     * @param done      Run on the inbound lane once all values have been saved.
+     */
+    private void copyAllPreferencesToLocal(final List<SyncedFile> files, final Set<String> nodeIds, final Runnable done){
+        final long start = System.nanoTime();
+        final AtomicInteger remaining = new AtomicInteger(files.size() * nodeIds.size());
 
-        final String fileName = sharedPreferences.getString(KEY_FILE_NAME, null);
-        final String pathPrefix = getPathPrefix(fileName);
-        final String path = pathPrefix + updatedKey;
+        final Runnable fileDone = new Runnable() {
+            @Override public void run() {
+                if(remaining.decrementAndGet()<=0) {
+                    mMetrics.resync(System.nanoTime() - start);
+                    done.run();
+                }
+            }
+        };
 
-        // Synchronize on the cache, so that data isn't received simultaneously
-        synchronized (mSharedPreferenceCache){
-            updateValueRemote(sharedPreferences, updatedKey, fileName, path);
-            KeySetUtil.addToKeySet(mApiClient, pathPrefix, updatedKey);
+        if(files.isEmpty()){
+            fileDone.run();
+        }
+        for(String nodeId:nodeIds) {
+            for(SyncedFile file:files) {
+                try {
+                    copyAllPreferencesToLocal(file, nodeId, fileDone);
+                } catch (RuntimeException e) {
+                    // Counted as done, so that the resync still finishes
+                    Log.w(TAG, "Failed to reconcile "+file.pathPrefix, e);
+                    fileDone.run();
+                }
+            }
         }
     }
 
-    private void updateValueRemote(final SharedPreferences sharedPreferences,
-                                   final String key, final String fileName, final String path) {
-        final PutDataMapRequest request = PutDataMapRequest.create(path);
+    /**
+     * Reconciles the given file with other devices. Reads their digests of the file first,
+     * and only loads values if the digests differ from this device's, saving only the values
+     * of keys in buckets that differ. Returns without waiting for the reads.
+     *
+     * @param nodeId    The device to reconcile with, or null to reconcile with all devices.
+     * @param done      Run on the inbound lane once the file has been reconciled.
+     */
+    private void copyAllPreferencesToLocal(final SyncedFile file, @Nullable final String nodeId, final Runnable done){
+        file.digest.load(file);
+
+        final Transport.ReadCallback digestsRead = new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull final List<DataMap> digests) {
+                mInbound.post(new Runnable() {
+                    @Override public void run() {
+                        boolean loading = false;
+                        try {
+                            final boolean[] divergent = findDivergentBuckets(file, digests);
+                            if(divergent!=null){
+                                copyAllPreferencesToLocal(file, nodeId, divergent, done);
+                                loading = true;
+                            }
 
-        final Map<String, ?> prefsMap = sharedPreferences.getAll();
-        final DataMap dataMap = request.getDataMap();
-        dataMap.putString(KEY_FILE_NAME, fileName);
-        dataMap.putString(KEY_KEY, key);
-        TypeUtil.saveObject(dataMap, KEY_VALUE, prefsMap.get(key));
+                            // Let other devices compare with this one's values
+                            queueDigestPublish(file);
+                        } finally {
+                            // Run even if reconciling failed, so that later resyncs aren't blocked
+                            if(!loading){
+                                done.run();
+                            }
+                        }
+                    }
+                });
+            }
+        };
 
-        Wearable.DataApi.putDataItem(
-                mApiClient,
-                request.asPutDataRequest());
+        if(nodeId==null){
+            mTransport.getDataMaps(getDigestPath(file.pathPrefix), digestsRead);
+        }else{
+            mTransport.getDataMapsFromNode(nodeId, getDigestPath(file.pathPrefix), digestsRead);
+        }
     }
 
-    @Override public void onDataChanged(DataEventBuffer dataEvents) {
-        for(DataEvent event:dataEvents){
-            final DataItem changedDataItem = event.getDataItem();
-            final DataMap data = DataMap.fromByteArray(changedDataItem.getData());
-            loadPrefFromDataMap(data);
+    /**
+     * Compares other devices' digests of a file with this device's.
+     *
+     * @return The buckets whose digests differ, or null if none do. If no other device
+     * has published a digest, as previous versions of WearPrefs don't, all buckets differ.
+     */
+    @Nullable private boolean[] findDivergentBuckets(final SyncedFile file, final List<DataMap> digests){
+        final long[] local = file.digest.getBuckets();
+        final long localRoot = FileDigest.rootOf(local);
+        final boolean[] divergent = new boolean[FileDigest.BUCKETS];
+        final String localNodeId = mTransport.getLocalNodeId();
+        boolean anyDivergent = false;
+        int compared = 0;
+
+        for(DataMap digest:digests){
+            // This device's own digest, which may have been published by a previous process
+            if(mOrigin.equals(digest.getString(KEY_ORIGIN))
+                    || (localNodeId!=null && localNodeId.equals(digest.getString(KEY_NODE_ID)))){
+                continue;
+            }
+
+            compared++;
+            anyDivergent |= FileDigest.markDivergent(local, localRoot,
+                    digest.getLongArray(KEY_BUCKETS), digest.getLong(KEY_ROOT), divergent);
+        }
+
+        if(compared==0){
+            Arrays.fill(divergent, true);
+            return divergent;
         }
+        return anyDivergent ? divergent : null;
     }
 
-    private void loadPrefFromDataMap(final DataMap data){
-        new Thread(){
-            public void run(){
-                loadPrefFromDataMapAsync(data);
+    /**
+     * Loads every value for the given file from the DataApi, using a single
+     * query for all per-key items, and saves those in the given buckets with a single commit.
+     * Returns without waiting for the reads, and saves the values on the inbound lane.
+     *
+     * @param nodeId    The device to load values from, or null to load from all devices.
+     * @param buckets   The buckets whose keys are saved.
+     * @param done      Run on the inbound lane once the values have been saved.
+     */
+    private void copyAllPreferencesToLocal(final SyncedFile file, @Nullable final String nodeId,
+                                           final boolean[] buckets, final Runnable done){
+        final Transport.ReadCallback itemsRead = new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull final List<DataMap> items) {
+                final Transport.ReadCallback batchesRead = new Transport.ReadCallback() {
+                    @Override public void onResult(@NonNull final List<DataMap> batches) {
+                        mInbound.post(new Runnable() {
+                            @Override public void run() {
+                                try {
+                                    saveResyncedItems(file, items, batches, buckets);
+                                } finally {
+                                    if(--file.resyncsInProgress==0){
+                                        file.receivedDuringResync.clear();
+                                    }
+                                    done.run();
+                                }
+                            }
+                        });
+                    }
+                };
+
+                // Keys sent in batches do not have their own item
+                if(nodeId==null){
+                    mTransport.getDataMaps(getBatchPath(file.pathPrefix), batchesRead);
+                }else{
+                    mTransport.getDataMapsFromNode(nodeId, getBatchPath(file.pathPrefix), batchesRead);
+                }
             }
-        }.start();
+        };
+
+        if(nodeId==null){
+            mTransport.getDataMapsWithPrefix(file.pathPrefix, itemsRead);
+        }else{
+            mTransport.getDataMapsFromNodeWithPrefix(nodeId, file.pathPrefix, itemsRead);
+        }
+
+        // Counted once the reads have been made, as they are saved by a later task on this lane
+        file.resyncsInProgress++;
     }
 
-    private void loadPrefFromDataMapAsync(@NonNull final DataMap data){
-        final String key = data.get(KEY_KEY);
-        final String fileName = data.getString(KEY_FILE_NAME);
-        final Object value = data.get(KEY_VALUE);
+    /**
+     * Saves the items read by a resync with a single commit, except for keys
+     * that have been received since, which already have newer values.
+     */
+    private void saveResyncedItems(final SyncedFile file, final List<DataMap> items, final List<DataMap> batches,
+                                   final boolean[] buckets){
+        final Set<String> newerKeys = file.receivedDuringResync;
+        final SharedPreferences.Editor editor = file.prefs.edit();
+        boolean changed = false;
+
+        // Synchronize on the file, so that values aren't sent between being saved and applied
+        synchronized (file.lock) {
+            for(DataMap data:items){
+                final String key = data.getString(KEY_KEY);
 
-        final SharedPreferences prefs = mSharedPreferenceCache.get(getPathPrefix(fileName));
+                // Skips the key set item, and items of other files sharing this path prefix
+                if(key!=null && isSameFile(file, data.getString(KEY_FILE_NAME)) && !newerKeys.contains(key)
+                        && buckets[FileDigest.bucketOf(key)]) {
+                    changed |= saveRemoteValue(file, editor, key, data.get(KEY_VALUE),
+                            data.getInt(KEY_TYPE, UNTAGGED), readVersion(data, data.getLong(KEY_CLOCK)))==SAVED;
+                }
+            }
+            for(DataMap data:batches){
+                changed |= saveBatchToEditor(file, editor, data, newerKeys, buckets);
+            }
 
-        if(key==null || prefs==null) {
-            return;
+            if(changed) {
+                applyRemoteChanges(file, editor);
+            }
         }
+        readAssets(file);
+    }
 
-        // Synchronize on the cache, so that data isn't sent simultaneously
-        synchronized (mSharedPreferenceCache) {
-            saveValueToPrefs(prefs, key, value);
+    /**
+     * Reads the Assets of received values that were deferred while saving, on the asset lane,
+     * then saves the decoded values on the inbound lane with a single editor.
+     */
+    private void readAssets(final SyncedFile file){
+        if(file.unreadAssets.isEmpty()){
+            return;
         }
+
+        final List<SyncedFile.PendingAsset> assets = new ArrayList<>(file.unreadAssets);
+        file.unreadAssets.clear();
+
+        mAssets.post(new Runnable() {
+            @Override public void run() {
+                // Blocks while each Asset is read
+                for(SyncedFile.PendingAsset asset:assets){
+                    try {
+                        asset.decoded = ValueCodec.decode(asset.value, mTransport);
+                        asset.read = true;
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "Ignoring value whose Asset couldn't be read for "+asset.key, e);
+                    }
+                }
+
+                mInbound.post(new Runnable() {
+                    @Override public void run() {
+                        saveReadAssets(file, assets);
+                    }
+                });
+            }
+        });
     }
 
-    @SuppressLint("CommitPrefEdits")
-    private void saveValueToPrefs(SharedPreferences prefs, String key, Object value){
-        final SharedPreferences.Editor editor = prefs.edit();
-        TypeUtil.saveObject(editor, key, value);
+    /** Saves values whose Assets have been read, unless newer values have been received since */
+    private void saveReadAssets(final SyncedFile file, final List<SyncedFile.PendingAsset> assets){
+        final SharedPreferences.Editor editor = file.prefs.edit();
+        boolean changed = false;
 
-        prefs.unregisterOnSharedPreferenceChangeListener(WearPrefs.this);
-        try {
-            editor.commit();
-        } finally {
-            prefs.registerOnSharedPreferenceChangeListener(WearPrefs.this);
+        // Synchronize on the file, so that values aren't sent between being saved and applied
+        synchronized (file.lock) {
+            for(SyncedFile.PendingAsset asset:assets){
+                if(file.pendingAssets.get(asset.key)!=asset){
+                    continue;
+                }
+                file.pendingAssets.remove(asset.key);
+
+                if(asset.read) {
+                    changed |= saveRemoteValue(file, editor, asset.key, asset.decoded, asset.tag, asset.version)==SAVED;
+                }
+            }
+
+            if(changed) {
+                applyRemoteChanges(file, editor);
+            }
         }
     }
 
-    private String getPathPrefix(final String fileName) {
-        return fileName==null
-                ?PATH_PREFIX_DEFAULT
-                :(PATH_PREFIX+fileName+"_");
+    @Override public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                                    final String updatedKey) {
+
+        // Ignore the file name preference written by previous versions
+        if(updatedKey.equalsIgnoreCase(KEY_FILE_NAME)){
+            return;
+        }
+
+        final SyncedFile file = mFilesByPrefs.get(sharedPreferences);
+        if(file==null || !file.options.isKeySynced(updatedKey)){
+            return;
+        }
+
+        // The change was made by WearPrefs, saving a value received from a connected device
+        if(file.consumeRemoteOrigin(updatedKey)){
+            mMetrics.echoSuppressed(file.fileName, updatedKey);
+            return;
+        }
+
+        // Stamped when made, so that it wins over remote changes made before it
+        stampLocalChange(file, updatedKey);
+
+        ensureConnected();
+
+        final String path = file.pathPrefix + updatedKey;
+
+        // An update for this key is already queued, and will send the latest value
+        if(mPendingOutboundPaths.putIfAbsent(path, System.nanoTime())!=null){
+            return;
+        }
+
+        mOutbound.post(new Runnable() {
+            @Override public void run() {
+                final long changedAtNanos = mPendingOutboundPaths.remove(path);
+                onSharedPreferenceChangedAsync(file, updatedKey, path, changedAtNanos);
+            }
+        });
+    }
+
+    private void onSharedPreferenceChangedAsync(final SyncedFile file,
+                                                final String updatedKey,
+                                                final String path,
+                                                final long changedAtNanos) {
+
+        if(file.digest.isLoaded()){
+            final Object value = file.readValue(updatedKey);
+            file.digest.update(updatedKey, Fingerprint.of(value==null ? TypeUtil.TYPE_NONE : file.getKnownType(updatedKey), value));
+            queueDigestPublish(file);
+        }
+
+        // Sent when the transport reconnects
+        if(!mConnected){
+            journal(file, Collections.singletonList(updatedKey));
+            return;
+        }
+
+        if(file.options.isDeferred(updatedKey)){
+            addToDeferred(file, updatedKey, changedAtNanos);
+            return;
+        }
+
+        if(file.options.isBatching() && !file.options.isImmediate(updatedKey)){
+            addToBatch(file, updatedKey, changedAtNanos);
+            return;
+        }
+
+        final boolean sent;
+
+        // Synchronize on the file, so that data isn't received simultaneously
+        synchronized (file.lock){
+            sent = updateValueRemote(file, updatedKey, path, changedAtNanos);
+        }
+
+        if(sent && updateKeySet(file, updatedKey, file.prefs.contains(updatedKey))){
+            queueKeySetFlush();
+        }
+
+        // Send deferred changes while the connection is already in use
+        if(sent && !file.pendingDeferredKeys.isEmpty()){
+            flushBatch(file);
+        }
+    }
+
+    /**
+     * Queues a changed deferred key to be sent with the next batch or immediate change,
+     * scheduling a batch for when the deferred delay has passed if necessary.
+     */
+    private void addToDeferred(final SyncedFile file, final String key, final long changedAtNanos) {
+        final boolean flushScheduled = !file.pendingDeferredKeys.isEmpty();
+        file.pendingDeferredKeys.add(key);
+
+        if(!flushScheduled){
+            file.pendingDeferredChangedAtNanos = changedAtNanos;
+            mOutbound.postDelayed(new Runnable() {
+                @Override public void run() {
+                    // Already sent with another change
+                    if(!file.pendingDeferredKeys.isEmpty()) {
+                        flushBatch(file);
+                    }
+                }
+            }, file.options.getDeferredDelayMillis());
+        }
+    }
+
+    /**
+     * Adds a sent key to its file's key set, or leaves a tombstone if it was removed.
+     *
+     * @return true if the key set changed, and needs to be flushed.
+     */
+    private boolean updateKeySet(final SyncedFile file, final String key, final boolean present){
+        return present
+                ? mKeySetIndex.add(file.pathPrefix, key)
+                : mKeySetIndex.remove(file.pathPrefix, key, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues a write of new keys to the DataApi key sets. The write is queued behind
+     * any changes already on the outbound lane, so that their new keys are written together.
+     */
+    private void queueKeySetFlush() {
+        if(mKeySetFlushQueued.compareAndSet(false, true)){
+            mOutbound.post(new Runnable() {
+                @Override public void run() {
+                    mKeySetFlushQueued.set(false);
+                    mKeySetIndex.flush();
+                }
+            });
+        }
+    }
+
+    /** Queues a changed key to be sent with the next batch, scheduling the batch if necessary */
+    private void addToBatch(final SyncedFile file, final String key, final long changedAtNanos) {
+        final boolean flushScheduled = !file.pendingBatchKeys.isEmpty();
+        file.pendingBatchKeys.add(key);
+
+        if(!flushScheduled){
+            file.pendingBatchChangedAtNanos = changedAtNanos;
+            mOutbound.postDelayed(new Runnable() {
+                @Override public void run() {
+                    flushBatch(file);
+                }
+            }, file.options.getBatchWindowMillis());
+        }
+    }
+
+    /** Sends all keys changed since the last batch, including deferred keys, as a single DataApi item */
+    private void flushBatch(final SyncedFile file) {
+        if(!file.pendingDeferredKeys.isEmpty()){
+            if(file.pendingBatchKeys.isEmpty()){
+                file.pendingBatchChangedAtNanos = file.pendingDeferredChangedAtNanos;
+            }
+            file.pendingBatchKeys.addAll(file.pendingDeferredKeys);
+            file.pendingDeferredKeys.clear();
+        }
+
+        if(file.pendingBatchKeys.isEmpty()){
+            return;
+        }
+
+        // Sent when the transport reconnects
+        if(!mConnected){
+            journal(file, file.pendingBatchKeys);
+            file.pendingBatchKeys.clear();
+            return;
+        }
+
+        // Sent once the previous batch has been read
+        if(!file.batchLoaded){
+            loadOwnBatch(file);
+            if(!file.batchLoaded){
+                return;
+            }
+        }
+
+        final Map<String, Long> sentClocks = new LinkedHashMap<>();
+        final int bytes;
+
+        // Synchronize on the file, so that values being received aren't read before they are saved
+        synchronized (file.lock){
+            boolean keySetChanged = false;
+
+            for(String key:file.pendingBatchKeys){
+                final Object value = file.readValue(key);
+                final int type = value==null ? TypeUtil.TYPE_NONE : file.getKnownType(key);
+                final long fingerprint = Fingerprint.of(type, value);
+
+                // Skip values that haven't changed since they were last sent or received,
+                // and keys whose latest change was received
+                final HybridClock.Version version = file.isSynced(key, fingerprint) ? null : getLocalVersion(file, key);
+                if(version==null){
+                    mMetrics.sendSkipped(file.fileName, key);
+                    file.journal.remove(key);
+                    continue;
+                }
+
+                file.markSynced(key, fingerprint);
+                ValueCodec.saveObject(file.batchValues, key, type, value, file.options);
+                file.batchClocks.putLong(key, version.clock);
+                sentClocks.put(key, version.clock);
+
+                if(value==null){
+                    file.batchTypes.remove(key);
+                    file.batchRemovedKeys.add(key);
+                    keySetChanged |= updateKeySet(file, key, false);
+                }else{
+                    file.batchTypes.putInt(key, type);
+                    file.batchRemovedKeys.remove(key);
+                    keySetChanged |= updateKeySet(file, key, true);
+                }
+            }
+            file.pendingBatchKeys.clear();
+
+            if(keySetChanged){
+                queueKeySetFlush();
+            }
+
+            if(sentClocks.isEmpty()){
+                return;
+            }
+
+            final DataMap dataMap = new DataMap();
+            dataMap.putString(KEY_FILE_NAME, file.fileName);
+            dataMap.putLong(KEY_SENT_AT, System.currentTimeMillis());
+            dataMap.putDataMap(KEY_VALUES, file.batchValues);
+            dataMap.putDataMap(KEY_TYPES, file.batchTypes);
+            dataMap.putDataMap(KEY_CLOCKS, file.batchClocks);
+            dataMap.putString(KEY_ORIGIN, mOrigin);
+            dataMap.putStringArrayList(KEY_REMOVED, new ArrayList<>(file.batchRemovedKeys));
+
+            bytes = dataMap.toByteArray().length>BATCH_MAX_BYTES
+                    ?spillBatch(file)
+                    :put(file, getBatchPath(file.pathPrefix), dataMap, sentClocks);
+        }
+        mMetrics.valuesSent(file.fileName, sentClocks.size(), bytes,
+                System.nanoTime() - file.pendingBatchChangedAtNanos);
+    }
+
+    /**
+     * Starts reading this device's batch item into the file's batch, so that the first batch sent by this
+     * process doesn't replace the values sent by previous ones. The batch is sent once the item has been
+     * read, or without it if the read takes too long. Until then, flushes wait for the batch to be sent.
+     */
+    private void loadOwnBatch(final SyncedFile file){
+        // Already reading
+        if(file.batchLoad!=null){
+            return;
+        }
+
+        final String nodeId = mTransport.getLocalNodeId();
+        if(nodeId==null){
+            Log.w(TAG, "Sending batch without reading the previous one, as this device's id is unknown");
+            file.batchLoaded = true;
+            return;
+        }
+
+        final SyncFuture loaded = new SyncFuture();
+        file.batchLoad = loaded;
+        mPendingPuts.add(loaded);
+
+        final AtomicBoolean finished = new AtomicBoolean();
+        mTransport.getDataMapsFromNode(nodeId, getBatchPath(file.pathPrefix), new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull final List<DataMap> items) {
+                if(!finished.compareAndSet(false, true)){
+                    return;
+                }
+
+                final Runnable finish = new Runnable() {
+                    @Override public void run() {
+                        finishLoadingBatch(file, loaded, items);
+                    }
+                };
+
+                // Shutting down, while the release task waits for this batch on the outbound lane
+                if(!mOutbound.post(finish)){
+                    finish.run();
+                }
+            }
+        });
+
+        mOutbound.postDelayed(new Runnable() {
+            @Override public void run() {
+                if(finished.compareAndSet(false, true)){
+                    Log.w(TAG, "Sending batch without the previous one, which couldn't be read in time");
+                    finishLoadingBatch(file, loaded, Collections.<DataMap>emptyList());
+                }
+            }
+        }, BATCH_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Merges this device's previous batch into the file's batch, and sends the changes
+     * that were waiting for it. The given future completes once they have been written.
+     */
+    private void finishLoadingBatch(final SyncedFile file, final SyncFuture loaded, final List<DataMap> batches){
+        for(DataMap batch:batches){
+            final DataMap values = batch.getDataMap(KEY_VALUES);
+            final DataMap types = batch.getDataMap(KEY_TYPES);
+            final DataMap clocks = batch.getDataMap(KEY_CLOCKS);
+            final ArrayList<String> removed = batch.getStringArrayList(KEY_REMOVED);
+
+            if(values!=null){
+                file.batchValues.putAll(values);
+            }
+            if(types!=null){
+                file.batchTypes.putAll(types);
+            }
+            if(clocks!=null){
+                file.batchClocks.putAll(clocks);
+            }
+            if(removed!=null){
+                file.batchRemovedKeys.addAll(removed);
+            }
+        }
+        file.batchLoaded = true;
+        file.batchLoad = null;
+
+        flushBatch(file);
+
+        mPendingPuts.remove(loaded);
+        if(file.journal.isEmpty()){
+            SyncFuture.completeWhenAll(new ArrayList<>(mPendingPuts), loaded);
+        }else{
+            loaded.complete(false);
+        }
+    }
+
+    /**
+     * Sends every value and removal in the file's batch as its own item, and starts the batch again,
+     * once it has grown too large to be sent as a single item.
+     *
+     * @return The encoded size of the items, in bytes.
+     */
+    private int spillBatch(final SyncedFile file){
+        final Set<String> keys = new LinkedHashSet<>(file.batchValues.keySet());
+        keys.addAll(file.batchRemovedKeys);
+
+        int bytes = 0;
+        for(String key:keys){
+            final int type = file.batchTypes.getInt(key, TypeUtil.TYPE_NONE);
+            final Object value = file.batchValues.get(key);
+
+            final DataMap dataMap = new DataMap();
+            dataMap.putString(KEY_FILE_NAME, file.fileName);
+            dataMap.putString(KEY_KEY, key);
+            dataMap.putLong(KEY_SENT_AT, System.currentTimeMillis());
+            dataMap.putInt(KEY_TYPE, type);
+            dataMap.putLong(KEY_CLOCK, file.batchClocks.getLong(key));
+            dataMap.putString(KEY_ORIGIN, mOrigin);
+
+            // Encoded values are moved as they are
+            if(value instanceof DataMap){
+                dataMap.putDataMap(KEY_VALUE, (DataMap) value);
+            }else{
+                TypeUtil.saveObject(dataMap, KEY_VALUE, type, value);
+            }
+
+            bytes += put(file, file.pathPrefix + key, dataMap,
+                    Collections.singletonMap(key, file.batchClocks.getLong(key)));
+        }
+
+        file.batchValues.clear();
+        file.batchTypes.clear();
+        file.batchClocks.clear();
+        file.batchRemovedKeys.clear();
+
+        // Its values now have their own items
+        mTransport.deleteDataMap(getBatchPath(file.pathPrefix), null);
+        return bytes;
+    }
+
+    /**
+     * Sends the current value of the given key to the DataApi, unless
+     * it is the value that was last sent or received for that key.
+     *
+     * @return true if the value was sent.
+     */
+    private boolean updateValueRemote(final SyncedFile file, final String key, final String path,
+                                      final long changedAtNanos) {
+        final Object value = file.readValue(key);
+        final int type = value==null ? TypeUtil.TYPE_NONE : file.getKnownType(key);
+        final long fingerprint = Fingerprint.of(type, value);
+
+        // Skip values that haven't changed since they were last sent or received,
+        // and keys whose latest change was received
+        final HybridClock.Version version = file.isSynced(key, fingerprint) ? null : getLocalVersion(file, key);
+        if(version==null){
+            mMetrics.sendSkipped(file.fileName, key);
+            file.journal.remove(key);
+            return false;
+        }
+
+        final DataMap dataMap = new DataMap();
+        dataMap.putString(KEY_FILE_NAME, file.fileName);
+        dataMap.putString(KEY_KEY, key);
+        dataMap.putLong(KEY_SENT_AT, System.currentTimeMillis());
+        dataMap.putInt(KEY_TYPE, type);
+        dataMap.putLong(KEY_CLOCK, version.clock);
+        dataMap.putString(KEY_ORIGIN, mOrigin);
+        ValueCodec.saveObject(dataMap, KEY_VALUE, type, value, file.options);
+
+        file.markSynced(key, fingerprint);
+        final int bytes = put(file, path, dataMap, Collections.singletonMap(key, version.clock));
+        mMetrics.valuesSent(file.fileName, 1, bytes, System.nanoTime() - changedAtNanos);
+        return true;
+    }
+
+    @Override public void onDataChanged(@NonNull final List<DataMap> changedItems) {
+        // Group received items by file, so that each file is saved once
+        final Map<SyncedFile, List<DataMap>> received = new LinkedHashMap<>();
+
+        for(DataMap data:changedItems){
+            // Digests are only read when reconciling
+            if(data.containsKey(KEY_BUCKETS)){
+                continue;
+            }
+
+            final SyncedFile file = mSharedPreferenceCache.get(getPathPrefix(data.getString(KEY_FILE_NAME)));
+
+            if(file!=null){
+                List<DataMap> fileData = received.get(file);
+                if(fileData==null){
+                    fileData = new ArrayList<>();
+                    received.put(file, fileData);
+                }
+                fileData.add(data);
+            }
+        }
+
+        for(final Map.Entry<SyncedFile, List<DataMap>> entry:received.entrySet()){
+            mInbound.post(new Runnable() {
+                @Override public void run() {
+                    loadPrefsFromDataMapsAsync(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+    }
+
+    /** Saves all received values for a file with a single editor and a single disk write */
+    private void loadPrefsFromDataMapsAsync(@NonNull final SyncedFile file, @NonNull final List<DataMap> received){
+        final SharedPreferences.Editor editor = file.prefs.edit();
+        boolean changed = false;
+
+        // Synchronize on the file, so that values aren't sent between being saved and applied
+        synchronized (file.lock) {
+            for(DataMap data:received){
+                mMetrics.itemReceived(file.fileName, data.getLong(KEY_SENT_AT));
+
+                if(file.resyncsInProgress>0){
+                    recordReceivedDuringResync(file, data);
+                }
+
+                if(data.containsKey(KEY_VALUES)){
+                    changed |= saveBatchToEditor(file, editor, data, Collections.<String>emptySet(), null);
+                }else{
+                    changed |= loadPrefFromDataMapAsync(file, editor, data);
+                }
+            }
+
+            if(changed) {
+                applyRemoteChanges(file, editor);
+            }
+        }
+        readAssets(file);
+    }
+
+    /**
+     * Saves a single received value into the given editor.
+     *
+     * @return true if the value was saved.
+     */
+    private boolean loadPrefFromDataMapAsync(@NonNull final SyncedFile file,
+                                             @NonNull final SharedPreferences.Editor editor,
+                                             @NonNull final DataMap data){
+        final String key = data.getString(KEY_KEY);
+
+        // Not a preference value (e.g. a key set), or not synchronized by this device
+        if(key==null || !file.options.isKeySynced(key)) {
+            return false;
+        }
+
+        final int result = saveRemoteValue(file, editor, key, data.get(KEY_VALUE),
+                data.getInt(KEY_TYPE, UNTAGGED), readVersion(data, data.getLong(KEY_CLOCK)));
+
+        if(result==ALREADY_SYNCED){
+            mMetrics.echoSuppressed(file.fileName, key);
+        }
+        return result==SAVED;
+    }
+
+    /** Records the keys of a received item, so that a resync in progress doesn't replace them with older values */
+    private static void recordReceivedDuringResync(final SyncedFile file, final DataMap data){
+        final String key = data.getString(KEY_KEY);
+        final DataMap values = data.getDataMap(KEY_VALUES);
+        final ArrayList<String> removed = data.getStringArrayList(KEY_REMOVED);
+
+        if(key!=null){
+            file.receivedDuringResync.add(key);
+        }
+        if(values!=null){
+            file.receivedDuringResync.addAll(values.keySet());
+        }
+        if(removed!=null){
+            file.receivedDuringResync.addAll(removed);
+        }
+    }
+
+    /**
+     * Saves all values and removals of a received batch into the given editor.
+     *
+     * @param skippedKeys   Keys not to save.
+     * @param buckets       The digest buckets whose keys are saved, or null to save keys in any bucket.
+     * @return true if any value was saved.
+     */
+    private boolean saveBatchToEditor(SyncedFile file, SharedPreferences.Editor editor, DataMap data,
+                                      Set<String> skippedKeys, @Nullable boolean[] buckets){
+        final DataMap values = data.getDataMap(KEY_VALUES);
+        final DataMap types = data.getDataMap(KEY_TYPES);
+        final DataMap clocks = data.getDataMap(KEY_CLOCKS);
+        final ArrayList<String> removed = data.getStringArrayList(KEY_REMOVED);
+        boolean changed = false;
+
+        if(values!=null){
+            for(String key:values.keySet()){
+                if(!skippedKeys.contains(key) && (buckets==null || buckets[FileDigest.bucketOf(key)])) {
+                    final int type = types==null ? UNTAGGED : types.getInt(key, UNTAGGED);
+                    final HybridClock.Version version = clocks==null ? null : readVersion(data, clocks.getLong(key));
+                    changed |= saveRemoteValue(file, editor, key, values.get(key), type, version)==SAVED;
+                }
+            }
+        }
+        if(removed!=null){
+            for(String key:removed){
+                if(!skippedKeys.contains(key) && (buckets==null || buckets[FileDigest.bucketOf(key)])) {
+                    final HybridClock.Version version = clocks==null ? null : readVersion(data, clocks.getLong(key));
+                    changed |= saveRemoteValue(file, editor, key, null, TypeUtil.TYPE_NONE, version)==SAVED;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Saves a received value into the given editor, decoding it if it was encoded,
+     * unless it is the value that was last sent or received for that key. Recording the value as synchronized
+     * also prevents it from being sent back when the change listener is notified.
+     *
+     * The value keeps the type that the key already has on this device if it can be
+     * represented exactly in that type (e.g. an int received for a long key), and
+     * otherwise takes the type it was sent with.
+     *
+     * Values are only saved if their version is newer than the key's latest change on this
+     * device, so that concurrent changes on both devices converge on the same value.
+     *
+     * @param tag       The type the value was sent with, or {@link #UNTAGGED} if unknown.
+     * @param version   The version the value was sent with, or null if it was sent by a
+     *                  previous version of WearPrefs, in which case it is always saved.
+     * @return {@link #SAVED}, {@link #ALREADY_SYNCED}, {@link #STALE}, {@link #IGNORED}, or
+     *          {@link #DEFERRED} if the value is stored in an Asset, which is saved once it has been read.
+     */
+    private int saveRemoteValue(SyncedFile file, SharedPreferences.Editor editor,
+                                String key, Object receivedValue, int tag,
+                                @Nullable HybridClock.Version version){
+        // Excluded keys are not decoded
+        if(!file.options.isKeySynced(key)){
+            return IGNORED;
+        }
+
+        if(version!=null){
+            mClock.update(version.clock);
+
+            final HybridClock.Version localVersion = file.getVersion(key);
+            if(!version.isNewerThan(localVersion)){
+                // The same change, received again
+                if(version.equals(localVersion)){
+                    return ALREADY_SYNCED;
+                }
+
+                // Drop older changes before decoding them. Batches are sent cumulatively,
+                // so only count each change once
+                if(file.markDropped(key, version)) {
+                    mMetrics.staleValueDropped(file.fileName, key);
+                }
+                return STALE;
+            }
+        }
+
+        // Assets are only read once the value is known to be newer, and are saved when read
+        if(ValueCodec.isAsset(receivedValue)){
+            final SyncedFile.PendingAsset pending = file.pendingAssets.get(key);
+            if(version==null || pending==null || !version.equals(pending.version)) {
+                final SyncedFile.PendingAsset asset = new SyncedFile.PendingAsset(key, receivedValue, tag, version);
+                file.pendingAssets.put(key, asset);
+                file.unreadAssets.add(asset);
+            }
+            return DEFERRED;
+        }
+
+        // Skipped before anything is recorded, so that a value that can't be saved isn't treated as synchronized
+        final Object decoded;
+        try {
+            decoded = ValueCodec.decode(receivedValue, mTransport);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring value that couldn't be decoded for "+key, e);
+            return IGNORED;
+        }
+
+        int type = TypeUtil.TYPE_NONE;
+        Object value = null;
+        if(decoded!=null) {
+            type = file.getKnownType(key);
+            value = TypeUtil.convert(decoded, type);
+
+            if(value==null){
+                type = tag==UNTAGGED ? TypeUtil.closestType(decoded) : tag;
+                value = TypeUtil.convert(decoded, type);
+            }
+            if(value==null){
+                Log.w(TAG, "Ignoring value of unsupported type "+decoded.getClass().getName()+" for "+key);
+                return IGNORED;
+            }
+        }
+
+        if(version!=null){
+            file.setVersion(key, version);
+        }
+
+        // Replaces a value whose Asset is still being read
+        file.pendingAssets.remove(key);
+
+        final long fingerprint = Fingerprint.of(type, value);
+        if(file.isSynced(key, fingerprint)){
+            return ALREADY_SYNCED;
+        }
+
+        if(!file.changeListeners.isEmpty()){
+            recordChange(file, key, file.readValue(key), value, version);
+        }
+
+        file.markSynced(key, fingerprint);
+        file.markRemoteOrigin(key, fingerprint);
+        file.rememberType(key, type);
+        file.digest.update(key, fingerprint);
+        TypeUtil.saveObject(editor, key, type, value);
+        queueDigestPublish(file);
+
+        // Removed on another device, so this device's item for the key is obsolete too
+        if(value==null && updateKeySet(file, key, false)){
+            queueKeySetFlush();
+        }
+        return SAVED;
+    }
+
+    /**
+     * Reads the version of a received value, from the given clock and the item's origin.
+     *
+     * @return The version, or null if the item was sent by a previous version of WearPrefs.
+     */
+    @Nullable private static HybridClock.Version readVersion(@NonNull final DataMap data, final long clock){
+        final String origin = data.getString(KEY_ORIGIN);
+        if(origin==null || clock==0){
+            return null;
+        }
+        return new HybridClock.Version(clock, origin);
+    }
+
+    /**
+     * Returns the version of the local change to the given key that is about to be sent,
+     * stamping a new version if the key hasn't changed since initialization.
+     *
+     * @return The version, or null if the key's latest change was received from another device,
+     * in which case its value must not be sent, as it may be older than the received one.
+     */
+    @Nullable private HybridClock.Version getLocalVersion(final SyncedFile file, final String key){
+        final HybridClock.Version version = file.getVersion(key);
+        if(version==null){
+            return stampLocalChange(file, key);
+        }
+        return version.origin.equals(mOrigin) ? version : null;
+    }
+
+    /** Records the time of a change made on this device */
+    @NonNull private HybridClock.Version stampLocalChange(final SyncedFile file, final String key){
+        final HybridClock.Version version = new HybridClock.Version(mClock.now(), mOrigin);
+        file.setVersion(key, version);
+        return version;
+    }
+
+    /**
+     * Records a received value that is being saved, for the change listeners. A key saved
+     * more than once before the editor is applied keeps its first previous value.
+     */
+    private static void recordChange(final SyncedFile file, final String key, @Nullable final Object oldValue,
+                                     @Nullable final Object newValue, @Nullable final HybridClock.Version version){
+        final RemoteChangeEvent.Change previous = file.pendingChanges.remove(key);
+        file.pendingChanges.put(key, new RemoteChangeEvent.Change(key,
+                previous==null ? oldValue : previous.getOldValue(), newValue,
+                version==null ? null : version.origin, version==null ? 0 : version.clock));
+    }
+
+    /**
+     * Saves received values to memory immediately, and to disk asynchronously,
+     * then notifies the change listeners of them as a single event.
+     */
+    private void applyRemoteChanges(SyncedFile file, SharedPreferences.Editor editor){
+        editor.apply();
+
+        if(file.pendingChanges.isEmpty()){
+            return;
+        }
+
+        final RemoteChangeEvent event = new RemoteChangeEvent(file.fileName,
+                new ArrayList<>(file.pendingChanges.values()));
+        file.pendingChanges.clear();
+
+        for(final Map.Entry<RemoteChangeListener, Executor> listener:file.changeListeners.entrySet()){
+            listener.getValue().execute(new Runnable() {
+                @Override public void run() {
+                    listener.getKey().onRemoteChanges(event);
+                }
+            });
+        }
+    }
+
+    @NonNull SyncMetrics snapshotMetrics(){
+        return mMetrics.snapshot(mOutbound.getQueueDepth(), mInbound.getQueueDepth());
+    }
+
+    /** Stops listening for changes, and disconnects once all queued work has completed */
+    void release(){
+        for(SyncedFile file:mSharedPreferenceCache.values()) {
+            file.prefs.unregisterOnSharedPreferenceChangeListener(this);
+        }
+
+        mAssets.shutdown();
+        mInbound.shutdown();
+
+        // Never connected, so there is nothing to send
+        if(!mConnectRequested.get()){
+            mOutbound.shutdown();
+            return;
+        }
+
+        mOutbound.post(new Runnable() {
+            @Override public void run() {
+                mInbound.awaitTermination(RELEASE_TIMEOUT_MILLIS);
+
+                // Send batched and deferred changes that are still waiting
+                for(SyncedFile file:mSharedPreferenceCache.values()) {
+                    flushBatch(file);
+                }
+
+                // Let writes complete before disconnecting
+                final SyncFuture written = new SyncFuture();
+                SyncFuture.completeWhenAll(new ArrayList<>(mPendingPuts), written);
+                try {
+                    written.get(RELEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (TimeoutException e) {
+                    Log.w(TAG, "Disconnecting before all changes were written");
+                }
+                mTransport.disconnect();
+            }
+        });
+        mOutbound.shutdown();
+    }
+
+    /**
+     * Queues sending of all batched and deferred changes behind changes already queued.
+     *
+     * @return A future completing once all of them have been written, or with false
+     * if any of them are journaled until the transport reconnects.
+     */
+    @NonNull SyncFuture flushPending(){
+        final SyncFuture result = new SyncFuture();
+        final boolean queued = mOutbound.post(new Runnable() {
+            @Override public void run() {
+                boolean journaled = false;
+                for(SyncedFile file:mSharedPreferenceCache.values()) {
+                    flushBatch(file);
+                    journaled |= !file.journal.isEmpty();
+                }
+
+                // Not written until the transport reconnects. Without a connection request, nothing has changed.
+                if(journaled || (!mConnected && mConnectRequested.get())){
+                    result.complete(false);
+                    return;
+                }
+                SyncFuture.completeWhenAll(new ArrayList<>(mPendingPuts), result);
+            }
+        });
+
+        // Shut down
+        if(!queued){
+            result.complete(false);
+        }
+        return result;
+    }
+
+    /**
+     * Writes an item to the DataApi, tracking it until the write completes.
+     * If the write succeeds, the given keys are removed from the journal,
+     * and if it fails, they are journaled, to be sent again on reconnection.
+     *
+     * @param clocks The clock of each key's change in the item, by key.
+     * @return The encoded size of the item, in bytes.
+     */
+    private int put(@NonNull final SyncedFile file, @NonNull final String path,
+                    @NonNull final DataMap dataMap, @NonNull final Map<String, Long> clocks){
+        final SyncFuture written = new SyncFuture();
+        mPendingPuts.add(written);
+
+        return mTransport.putDataMap(path, dataMap, new Transport.WriteCallback() {
+            @Override public void onComplete(final boolean success) {
+                mPendingPuts.remove(written);
+                if(!success){
+                    Log.w(TAG, "Failed to write "+path);
+                    journalFailedWrite(file, new ArrayList<>(clocks.keySet()));
+                }else if(!clocks.isEmpty()){
+                    removeSent(file, clocks);
+                }
+                written.complete(success);
+            }
+        });
+    }
+
+    /** Removes the keys of a successful write from the journal, now that their changes have been sent */
+    private void removeSent(@NonNull final SyncedFile file, @NonNull final Map<String, Long> clocks){
+        mOutbound.post(new Runnable() {
+            @Override public void run() {
+                file.journal.removeSent(clocks);
+            }
+        });
+    }
+
+    /** Journals the keys of a failed write, so that their current values are sent again */
+    private void journalFailedWrite(@NonNull final SyncedFile file, @NonNull final List<String> keys){
+        mOutbound.post(new Runnable() {
+            @Override public void run() {
+                for(String key:keys){
+                    file.forgetSynced(key);
+                }
+                journal(file, keys);
+            }
+        });
+    }
+
+    private String getPathPrefix(final String fileName) {
+        return fileName==null
+                ?PATH_PREFIX_DEFAULT
+                :(PATH_PREFIX+fileName+"_");
+    }
+
+    private static boolean isSameFile(final SyncedFile file, final String fileName) {
+        return file.fileName==null ? fileName==null : file.fileName.equals(fileName);
+    }
+
+    /** The DataApi path of the item containing the digest of the given file */
+    private String getDigestPath(final String pathPrefix) {
+        return PATH_PREFIX_DIGEST + pathPrefix;
+    }
+
+    /** The DataApi path of the item containing batched values for the given file */
+    private String getBatchPath(final String pathPrefix) {
+        return PATH_PREFIX_BATCH + pathPrefix;
     }
 
-    @Override public void onConnectionSuspended(int i) { }
-    @Override public void onConnectionFailed(ConnectionResult connectionResult) { }
-    @Override public void onPeerDisconnected(Node node) { }
 }
 
@@ -0,0 +1,301 @@
+package wearprefs;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeApi;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Transport} backed by the Google Play Services Wearable DataApi.
+ */
+public final class WearableTransport implements Transport, GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, DataApi.DataListener, NodeApi.NodeListener {
+
+    /** The context to create a client with, or null if an existing client was given */
+    @Nullable private final Context mContext;
+
+    /** The Wearable API client. When this transport owns the client, it is only created on connection */
+    private volatile GoogleApiClient mApiClient;
+
+    /** Whether this transport created the client, and is responsible for connecting it */
+    private final boolean mOwnsClient;
+
+    /** The thread that results of an owned client are delivered on, instead of the main thread */
+    @Nullable private HandlerThread mCallbackThread;
+
+    @Nullable private volatile Listener mListener;
+
+    /** The id of this device, once connected */
+    @Nullable private volatile String mLocalNodeId;
+
+    /**
+     * Creates a transport with its own connection to the Wearable API.
+     * The client is not created until the transport is connected.
+     *
+     * @param context   The context to connect with.
+     */
+    public WearableTransport(@NonNull final Context context){
+        mContext = context.getApplicationContext();
+        mOwnsClient = true;
+    }
+
+    /**
+     * Creates a transport using an existing Wearable API client. The client must
+     * already be connected, and the transport will not disconnect it.
+     *
+     * @param apiClient A client with the Wearable API added.
+     */
+    public WearableTransport(@NonNull final GoogleApiClient apiClient){
+        mContext = null;
+        mApiClient = apiClient;
+        mOwnsClient = false;
+    }
+
+    @Override public void connect(@NonNull final Listener listener) {
+        mListener = listener;
+
+        if(mOwnsClient) {
+            if(mApiClient==null) {
+                mCallbackThread = new HandlerThread("WearPrefs-transport");
+                mCallbackThread.start();
+
+                mApiClient = new GoogleApiClient.Builder(mContext)
+                        .setHandler(new Handler(mCallbackThread.getLooper()))
+                        .addApi(Wearable.API)
+                        .addConnectionCallbacks(this)
+                        .addOnConnectionFailedListener(this)
+                        .build();
+            }
+            mApiClient.connect();
+        }else if(mApiClient.isConnected()){
+            onConnected(null);
+        }
+    }
+
+    @Override public void disconnect() {
+        // Never connected
+        if(mApiClient==null) {
+            mListener = null;
+            return;
+        }
+
+        if(mApiClient.isConnected()) {
+            Wearable.DataApi.removeListener(mApiClient, this);
+            Wearable.NodeApi.removeListener(mApiClient, this);
+        }
+        mListener = null;
+
+        if(mOwnsClient) {
+            mApiClient.disconnect();
+
+            // A new client and thread are created if connected again
+            mApiClient = null;
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+    }
+
+    @Nullable @Override public String getLocalNodeId() {
+        return mLocalNodeId;
+    }
+
+    @Override public int putDataMap(@NonNull final String path, @NonNull final DataMap dataMap,
+                                    @Nullable final WriteCallback callback) {
+        final PutDataMapRequest request = PutDataMapRequest.create(path);
+        request.getDataMap().putAll(dataMap);
+
+        final PutDataRequest putRequest = request.asPutDataRequest();
+        Wearable.DataApi.putDataItem(
+                mApiClient,
+                putRequest)
+                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                    @Override public void onResult(DataApi.DataItemResult result) {
+                        if(callback!=null) {
+                            callback.onComplete(result.getStatus().isSuccess());
+                        }
+                    }
+                });
+
+        final byte[] data = putRequest.getData();
+        return data==null ? 0 : data.length;
+    }
+
+    @Override public void deleteDataMap(@NonNull final String path, @Nullable final WriteCallback callback) {
+        Wearable.DataApi.deleteDataItems(
+                mApiClient,
+                Uri.parse("wear:" + path))
+                .setResultCallback(new ResultCallback<DataApi.DeleteDataItemsResult>() {
+                    @Override public void onResult(DataApi.DeleteDataItemsResult result) {
+                        if(callback!=null) {
+                            callback.onComplete(result.getStatus().isSuccess());
+                        }
+                    }
+                });
+    }
+
+    @Override public void getDataMaps(@NonNull final String path, @NonNull final ReadCallback callback) {
+        Wearable.DataApi.getDataItems(
+                mApiClient,
+                Uri.parse("wear:" + path))
+                .setResultCallback(new DecodingCallback(callback));
+    }
+
+    @Override public void getDataMapsWithPrefix(@NonNull final String pathPrefix, @NonNull final ReadCallback callback) {
+        Wearable.DataApi.getDataItems(
+                mApiClient,
+                Uri.parse("wear:" + pathPrefix),
+                DataApi.FILTER_PREFIX)
+                .setResultCallback(new DecodingCallback(callback));
+    }
+
+    @Override public void getDataMapsFromNode(@NonNull final String nodeId, @NonNull final String path,
+                                              @NonNull final ReadCallback callback) {
+        Wearable.DataApi.getDataItems(
+                mApiClient,
+                getNodeUri(nodeId, path))
+                .setResultCallback(new DecodingCallback(callback));
+    }
+
+    @Override public void getDataMapsFromNodeWithPrefix(@NonNull final String nodeId, @NonNull final String pathPrefix,
+                                                        @NonNull final ReadCallback callback) {
+        Wearable.DataApi.getDataItems(
+                mApiClient,
+                getNodeUri(nodeId, pathPrefix),
+                DataApi.FILTER_PREFIX)
+                .setResultCallback(new DecodingCallback(callback));
+    }
+
+    /** The URI of the items at the given path written by the given device */
+    @NonNull private static Uri getNodeUri(@NonNull final String nodeId, @NonNull final String path){
+        return new Uri.Builder().scheme("wear").authority(nodeId).path(path).build();
+    }
+
+    @NonNull @Override public InputStream openAsset(@NonNull final Asset asset) throws IOException {
+        final DataApi.GetFdForAssetResult result = Wearable.DataApi.getFdForAsset(mApiClient, asset).await();
+        final InputStream in = result.getInputStream();
+
+        if(!result.getStatus().isSuccess() || in==null){
+            result.release();
+            throw new IOException("Failed to open asset: " + result.getStatus());
+        }
+        return in;
+    }
+
+    /** Decodes all items in a read result, then releases the buffer */
+    private static final class DecodingCallback implements ResultCallback<DataItemBuffer> {
+
+        @NonNull private final ReadCallback mCallback;
+
+        DecodingCallback(@NonNull final ReadCallback callback){
+            mCallback = callback;
+        }
+
+        @Override public void onResult(DataItemBuffer buffer) {
+            final List<DataMap> items = new ArrayList<>();
+            try {
+                if(buffer.getStatus().isSuccess()) {
+                    for (DataItem item : buffer) {
+                        items.add(toDataMap(item));
+                    }
+                }
+            }finally {
+                buffer.release();
+            }
+            mCallback.onResult(items);
+        }
+
+    }
+
+    /** Decodes an item's DataMap, including references to its assets */
+    private static DataMap toDataMap(@NonNull final DataItem item){
+        return DataMapItem.fromDataItem(item).getDataMap();
+    }
+
+    @Override public void onConnected(Bundle bundle) {
+        Wearable.DataApi.addListener(mApiClient, this);
+        Wearable.NodeApi.addListener(mApiClient, this);
+
+        // Known before the listener is notified, so that this device's own items can be told apart
+        Wearable.NodeApi.getLocalNode(mApiClient).setResultCallback(new ResultCallback<NodeApi.GetLocalNodeResult>() {
+            @Override public void onResult(NodeApi.GetLocalNodeResult result) {
+                if(result.getStatus().isSuccess()) {
+                    mLocalNodeId = result.getNode().getId();
+                }
+
+                final Listener listener = mListener;
+                if(listener!=null) {
+                    listener.onConnected();
+                }
+            }
+        });
+    }
+
+    @Override public void onDataChanged(DataEventBuffer dataEvents) {
+        final Listener listener = mListener;
+        if(listener==null) {
+            return;
+        }
+
+        // The buffer is released when this method returns, so decode all items now
+        final List<DataMap> changedItems = new ArrayList<>();
+        for(DataEvent event:dataEvents){
+            if(event.getType()==DataEvent.TYPE_CHANGED){
+                changedItems.add(toDataMap(event.getDataItem()));
+            }
+        }
+
+        listener.onDataChanged(changedItems);
+    }
+
+    @Override public void onPeerConnected(Node node) {
+        final Listener listener = mListener;
+        if(listener!=null) {
+            listener.onPeerConnected(node.getId());
+        }
+    }
+
+    @Override public void onPeerDisconnected(Node node) {
+        final Listener listener = mListener;
+        if(listener!=null) {
+            listener.onPeerDisconnected(node.getId());
+        }
+    }
+
+    @Override public void onConnectionSuspended(int i) {
+        final Listener listener = mListener;
+        if(listener!=null) {
+            listener.onConnectionSuspended();
+        }
+    }
+
+    @Override public void onConnectionFailed(ConnectionResult connectionResult) {
+        final Listener listener = mListener;
+        if(listener!=null) {
+            listener.onConnectionSuspended();
+        }
+    }
+}
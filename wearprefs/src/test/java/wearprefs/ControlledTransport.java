@@ -0,0 +1,179 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Transport} that passes calls to another, counting them and holding them back
+ * on request, so that tests can observe the engine's work and control when it completes.
+ */
+final class ControlledTransport implements Transport {
+
+    private final Transport mTransport;
+    private final AtomicInteger mConnects = new AtomicInteger();
+    private final AtomicInteger mOpenedAssets = new AtomicInteger();
+
+    /** Released to let held writes complete, or null if they aren't held */
+    @Nullable private volatile CountDownLatch mWriteGate;
+
+    /** The path whose writes are held */
+    @Nullable private volatile String mHeldPath;
+
+    /** Counted down when a write is held */
+    private final CountDownLatch mWriteHeld = new CountDownLatch(1);
+
+    /** Reads made while reads are held, or null if they aren't */
+    @Nullable private List<Runnable> mHeldReads;
+
+    ControlledTransport(@NonNull final Transport transport) {
+        mTransport = transport;
+    }
+
+    /** The number of times the transport has been connected */
+    int getConnects() {
+        return mConnects.get();
+    }
+
+    /** Blocks writes to the given path on the calling thread until {@link #releaseWrites()} is called */
+    void holdWrites(@NonNull final String path) {
+        mHeldPath = path;
+        mWriteGate = new CountDownLatch(1);
+    }
+
+    /** Lets held writes complete, and stops holding them */
+    void releaseWrites() {
+        final CountDownLatch gate = mWriteGate;
+        mWriteGate = null;
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+
+    /** Waits until a write is being held */
+    boolean awaitHeldWrite(final long timeoutMillis) throws InterruptedException {
+        return mWriteHeld.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Holds back reads until {@link #releaseReads()} is called */
+    synchronized void holdReads() {
+        if (mHeldReads == null) {
+            mHeldReads = new ArrayList<>();
+        }
+    }
+
+    /** Makes the reads that have been held back, and stops holding them */
+    void releaseReads() {
+        final List<Runnable> reads;
+        synchronized (this) {
+            reads = mHeldReads;
+            mHeldReads = null;
+        }
+        if (reads != null) {
+            for (Runnable read : reads) {
+                read.run();
+            }
+        }
+    }
+
+    /** The number of Assets that have been opened */
+    int getOpenedAssets() {
+        return mOpenedAssets.get();
+    }
+
+    @Override public void connect(@NonNull final Listener listener) {
+        mConnects.incrementAndGet();
+        mTransport.connect(listener);
+    }
+
+    @Override public void disconnect() {
+        mTransport.disconnect();
+    }
+
+    @Nullable @Override public String getLocalNodeId() {
+        return mTransport.getLocalNodeId();
+    }
+
+    @Override public int putDataMap(@NonNull final String path, @NonNull final DataMap dataMap,
+                                    @Nullable final WriteCallback callback) {
+        awaitWrites(path);
+        return mTransport.putDataMap(path, dataMap, callback);
+    }
+
+    @Override public void deleteDataMap(@NonNull final String path, @Nullable final WriteCallback callback) {
+        awaitWrites(path);
+        mTransport.deleteDataMap(path, callback);
+    }
+
+    @Override public void getDataMaps(@NonNull final String path, @NonNull final ReadCallback callback) {
+        read(new Runnable() {
+            @Override public void run() {
+                mTransport.getDataMaps(path, callback);
+            }
+        });
+    }
+
+    @Override public void getDataMapsWithPrefix(@NonNull final String pathPrefix, @NonNull final ReadCallback callback) {
+        read(new Runnable() {
+            @Override public void run() {
+                mTransport.getDataMapsWithPrefix(pathPrefix, callback);
+            }
+        });
+    }
+
+    @Override public void getDataMapsFromNode(@NonNull final String nodeId, @NonNull final String path,
+                                              @NonNull final ReadCallback callback) {
+        read(new Runnable() {
+            @Override public void run() {
+                mTransport.getDataMapsFromNode(nodeId, path, callback);
+            }
+        });
+    }
+
+    @Override public void getDataMapsFromNodeWithPrefix(@NonNull final String nodeId, @NonNull final String pathPrefix,
+                                                        @NonNull final ReadCallback callback) {
+        read(new Runnable() {
+            @Override public void run() {
+                mTransport.getDataMapsFromNodeWithPrefix(nodeId, pathPrefix, callback);
+            }
+        });
+    }
+
+    @NonNull @Override public InputStream openAsset(@NonNull final Asset asset) throws IOException {
+        mOpenedAssets.incrementAndGet();
+        return mTransport.openAsset(asset);
+    }
+
+    private void awaitWrites(@NonNull final String path) {
+        final CountDownLatch gate = mWriteGate;
+        if (gate != null && path.equals(mHeldPath)) {
+            mWriteHeld.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void read(@NonNull final Runnable read) {
+        synchronized (this) {
+            if (mHeldReads != null) {
+                mHeldReads.add(read);
+                return;
+            }
+        }
+        read.run();
+    }
+
+}
@@ -0,0 +1,124 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileDigestTest {
+
+    @Test public void equalFilesHaveEqualDigests() {
+        final FileDigest a = load(prefs("volume", 5, "theme", "dark"));
+        final FileDigest b = load(prefs("theme", "dark", "volume", 5));
+
+        assertArrayEquals(a.getBuckets(), b.getBuckets());
+        assertFalse(markDivergent(a, b, new boolean[FileDigest.BUCKETS]));
+    }
+
+    @Test public void changedKeyOnlyMarksItsBucket() {
+        final FileDigest a = load(prefs("volume", 5, "theme", "dark"));
+        final FileDigest b = load(prefs("volume", 5, "theme", "dark"));
+        b.update("volume", Fingerprint.of(6));
+
+        final boolean[] divergent = new boolean[FileDigest.BUCKETS];
+        assertTrue(markDivergent(a, b, divergent));
+        for (int i = 0; i < FileDigest.BUCKETS; i++) {
+            assertEquals(i == FileDigest.bucketOf("volume"), divergent[i]);
+        }
+
+        b.update("volume", Fingerprint.of(5));
+        assertFalse(markDivergent(a, b, new boolean[FileDigest.BUCKETS]));
+    }
+
+    @Test public void removedKeyMatchesAbsentKey() {
+        final FileDigest a = load(prefs("volume", 5));
+        final FileDigest b = load(prefs("volume", 5, "theme", "dark"));
+        b.update("theme", Fingerprint.REMOVED);
+
+        assertArrayEquals(a.getBuckets(), b.getBuckets());
+    }
+
+    @Test public void valuesOfDifferentTypesDiffer() {
+        final FileDigest a = load(prefs("value", 1));
+        final FileDigest b = load(prefs("value", 1L));
+        final FileDigest c = load(prefs("value", "1"));
+
+        assertTrue(markDivergent(a, b, new boolean[FileDigest.BUCKETS]));
+        assertTrue(markDivergent(a, c, new boolean[FileDigest.BUCKETS]));
+    }
+
+    @Test public void stringSetsAreComparedByContent() {
+        final FileDigest a = load(prefs("tags", new HashSet<>(Arrays.asList("a", "b", "c"))));
+        final FileDigest b = load(prefs("tags", new HashSet<>(Arrays.asList("c", "b", "a"))));
+
+        assertArrayEquals(a.getBuckets(), b.getBuckets());
+    }
+
+    @Test public void unreadableDigestMarksAllBuckets() {
+        final FileDigest a = load(prefs("volume", 5));
+        final long[] local = a.getBuckets();
+
+        final boolean[] divergent = new boolean[FileDigest.BUCKETS];
+        assertTrue(FileDigest.markDivergent(local, FileDigest.rootOf(local), null, 0, divergent));
+        for (boolean bucket : divergent) {
+            assertTrue(bucket);
+        }
+    }
+
+    @Test public void changesBeforeLoadingAreNotTracked() {
+        final FileDigest digest = new FileDigest();
+        digest.update("volume", Fingerprint.of(5));
+        assertFalse(digest.isLoaded());
+
+        digest.load(file(prefs()));
+        assertArrayEquals(new long[FileDigest.BUCKETS], digest.getBuckets());
+    }
+
+    private static boolean markDivergent(final FileDigest local, final FileDigest remote, final boolean[] divergent) {
+        final long[] localBuckets = local.getBuckets();
+        final long[] remoteBuckets = remote.getBuckets();
+        return FileDigest.markDivergent(localBuckets, FileDigest.rootOf(localBuckets),
+                remoteBuckets, FileDigest.rootOf(remoteBuckets), divergent);
+    }
+
+    private static FileDigest load(final SharedPreferences prefs) {
+        final FileDigest digest = new FileDigest();
+        digest.load(file(prefs));
+        return digest;
+    }
+
+    private static SyncedFile file(final SharedPreferences prefs) {
+        return new SyncedFile(prefs, null, "/test_", SyncOptions.DEFAULT);
+    }
+
+    /** Preferences holding the given keys and values, in turn */
+    @SuppressWarnings("unchecked")
+    private static SharedPreferences prefs(final Object... keysAndValues) {
+        final InMemorySharedPreferences prefs = new InMemorySharedPreferences();
+        final SharedPreferences.Editor editor = prefs.edit();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            final String key = (String) keysAndValues[i];
+            final Object value = keysAndValues[i + 1];
+            if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else {
+                editor.putStringSet(key, (Set<String>) value);
+            }
+        }
+        editor.commit();
+        return prefs;
+    }
+
+}
@@ -0,0 +1,46 @@
+package wearprefs;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class FingerprintTest {
+
+    @Test public void equalValuesMatch() {
+        assertEquals(Fingerprint.of("value"), Fingerprint.of(new String("value")));
+        assertEquals(Fingerprint.of(5), Fingerprint.of(5));
+        assertEquals(Fingerprint.of(1.5f), Fingerprint.of(1.5f));
+        assertEquals(Fingerprint.of(true), Fingerprint.of(true));
+    }
+
+    @Test public void differentValuesDontMatch() {
+        assertNotEquals(Fingerprint.of("value"), Fingerprint.of("other"));
+        assertNotEquals(Fingerprint.of(5), Fingerprint.of(6));
+        assertNotEquals(Fingerprint.of(true), Fingerprint.of(false));
+    }
+
+    @Test public void equalValuesOfDifferentTypesDontMatch() {
+        assertNotEquals(Fingerprint.of(1), Fingerprint.of(1L));
+        assertNotEquals(Fingerprint.of(1), Fingerprint.of("1"));
+        assertNotEquals(Fingerprint.of("a"), Fingerprint.of(new HashSet<>(Arrays.asList("a"))));
+    }
+
+    @Test public void stringSetsIgnoreOrder() {
+        assertEquals(Fingerprint.of(new LinkedHashSet<>(Arrays.asList("a", "b", "c"))),
+                Fingerprint.of(new LinkedHashSet<>(Arrays.asList("c", "a", "b"))));
+        assertNotEquals(Fingerprint.of(new HashSet<>(Arrays.asList("a", "b"))),
+                Fingerprint.of(new HashSet<>(Arrays.asList("a", "b", "c"))));
+    }
+
+    @Test public void removedValuesHaveTheirOwnFingerprint() {
+        assertEquals(Fingerprint.REMOVED, Fingerprint.of(null));
+        assertNotEquals(Fingerprint.REMOVED, Fingerprint.of(""));
+        assertNotEquals(Fingerprint.REMOVED, Fingerprint.of(0));
+    }
+
+}
@@ -0,0 +1,46 @@
+package wearprefs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HybridClockTest {
+
+    @Test public void timestampsIncrease() {
+        final HybridClock clock = new HybridClock();
+        long last = clock.now();
+        for (int i = 0; i < 100000; i++) {
+            final long next = clock.now();
+            assertTrue(next > last);
+            last = next;
+        }
+    }
+
+    @Test public void timestampsFollowReceivedOnes() {
+        final HybridClock clock = new HybridClock();
+        final long received = clock.now() + (60000L << 16);
+
+        clock.update(received);
+        assertTrue(clock.now() > received);
+    }
+
+    @Test public void laterVersionsWin() {
+        final HybridClock.Version earlier = new HybridClock.Version(100, "b");
+        final HybridClock.Version later = new HybridClock.Version(101, "a");
+
+        assertTrue(later.isNewerThan(earlier));
+        assertFalse(earlier.isNewerThan(later));
+        assertTrue(earlier.isNewerThan(null));
+    }
+
+    @Test public void greaterOriginWinsTies() {
+        final HybridClock.Version a = new HybridClock.Version(100, "a");
+        final HybridClock.Version b = new HybridClock.Version(100, "b");
+
+        assertTrue(b.isNewerThan(a));
+        assertFalse(a.isNewerThan(b));
+        assertFalse(a.isNewerThan(new HybridClock.Version(100, "a")));
+    }
+
+}
@@ -0,0 +1,203 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SharedPreferences implementation that only keeps values in memory, for running on the JVM.
+ *
+ * Listeners are notified on the thread that commits the change,
+ * instead of on the main thread. Tests can hold back changes to editors, and make commits fail.
+ */
+final class InMemorySharedPreferences implements SharedPreferences {
+
+    private final Map<String, Object> mValues = new HashMap<>();
+    private final List<OnSharedPreferenceChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /** Released to let held changes to editors complete, or null if they aren't held */
+    private volatile CountDownLatch mEditGate;
+
+    /** Counted down when a change to an editor is held */
+    private final CountDownLatch mEditHeld = new CountDownLatch(1);
+
+    /** Whether commits fail without changing any values */
+    private volatile boolean mFailCommits;
+
+    /** Makes later commits fail without changing any values */
+    void failCommits() {
+        mFailCommits = true;
+    }
+
+    /** Blocks changes to editors on the calling thread until {@link #releaseEdits()} is called */
+    void holdEdits() {
+        mEditGate = new CountDownLatch(1);
+    }
+
+    /** Lets held changes to editors complete, and stops holding them */
+    void releaseEdits() {
+        final CountDownLatch gate = mEditGate;
+        mEditGate = null;
+        if(gate!=null) {
+            gate.countDown();
+        }
+    }
+
+    /** Waits until a change to an editor is being held */
+    boolean awaitHeldEdit(final long timeoutMillis) throws InterruptedException {
+        return mEditHeld.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override public synchronized String getString(String key, String defValue) {
+        final String value = (String) mValues.get(key);
+        return value==null ? defValue : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        final Set<String> value = (Set<String>) mValues.get(key);
+        return value==null ? defValues : value;
+    }
+
+    @Override public synchronized int getInt(String key, int defValue) {
+        final Integer value = (Integer) mValues.get(key);
+        return value==null ? defValue : value;
+    }
+
+    @Override public synchronized long getLong(String key, long defValue) {
+        final Long value = (Long) mValues.get(key);
+        return value==null ? defValue : value;
+    }
+
+    @Override public synchronized float getFloat(String key, float defValue) {
+        final Float value = (Float) mValues.get(key);
+        return value==null ? defValue : value;
+    }
+
+    @Override public synchronized boolean getBoolean(String key, boolean defValue) {
+        final Boolean value = (Boolean) mValues.get(key);
+        return value==null ? defValue : value;
+    }
+
+    @Override public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override public Editor edit() {
+        return new InMemoryEditor();
+    }
+
+    @Override public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private final class InMemoryEditor implements Editor {
+
+        /** Changed values, with this editor as the value of removed keys */
+        private final Map<String, Object> mChanges = new HashMap<>();
+        private boolean mClear = false;
+
+        private Editor put(@NonNull final String key, final Object value){
+            final CountDownLatch gate = mEditGate;
+            if(gate!=null) {
+                mEditHeld.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mChanges.put(key, value==null ? this : value);
+            return this;
+        }
+
+        @Override public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values==null ? null : new HashSet<>(values));
+        }
+
+        @Override public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override public boolean commit() {
+            if(mFailCommits) {
+                return false;
+            }
+            final Set<String> changedKeys = new HashSet<>();
+
+            synchronized (InMemorySharedPreferences.this) {
+                if(mClear) {
+                    changedKeys.addAll(mValues.keySet());
+                    mValues.clear();
+                }
+
+                for(Map.Entry<String, Object> change:mChanges.entrySet()) {
+                    final String key = change.getKey();
+                    final Object value = change.getValue();
+
+                    if(value==this) {
+                        if(mValues.remove(key)!=null) {
+                            changedKeys.add(key);
+                        }
+                    } else if(!value.equals(mValues.put(key, value))) {
+                        changedKeys.add(key);
+                    }
+                }
+            }
+
+            for(String key:changedKeys) {
+                for(OnSharedPreferenceChangeListener listener:mListeners) {
+                    listener.onSharedPreferenceChanged(InMemorySharedPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        @Override public void apply() {
+            commit();
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package wearprefs;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyFilterTest {
+
+    @Test public void withoutRulesAcceptsAllKeys() {
+        final KeyFilter filter = KeyFilter.compile(Collections.<String>emptyList(), Collections.<String>emptyList());
+        assertSame(KeyFilter.ALL, filter);
+        assertTrue(filter.accepts("any_key"));
+    }
+
+    @Test public void includesMatchExactKeysPrefixesAndGlobs() {
+        final KeyFilter filter = KeyFilter.compile(Arrays.asList("volume", "theme_*", "user_?_name"),
+                Collections.<String>emptyList());
+
+        assertTrue(filter.accepts("volume"));
+        assertTrue(filter.accepts("theme_color"));
+        assertTrue(filter.accepts("theme_"));
+        assertTrue(filter.accepts("user_1_name"));
+
+        assertFalse(filter.accepts("volume_max"));
+        assertFalse(filter.accepts("themes"));
+        assertFalse(filter.accepts("user_12_name"));
+        assertFalse(filter.accepts("other"));
+    }
+
+    @Test public void excludesOverrideIncludes() {
+        final KeyFilter filter = KeyFilter.compile(Collections.singletonList("cache_*"),
+                Collections.singletonList("cache_token"));
+
+        assertTrue(filter.accepts("cache_size"));
+        assertFalse(filter.accepts("cache_token"));
+    }
+
+    @Test public void excludesAloneAcceptOtherKeys() {
+        final KeyFilter filter = KeyFilter.compile(Collections.<String>emptyList(),
+                Arrays.asList("last_sync_time", "*_draft"));
+
+        assertTrue(filter.accepts("volume"));
+        assertFalse(filter.accepts("last_sync_time"));
+        assertFalse(filter.accepts("message_draft"));
+    }
+
+}
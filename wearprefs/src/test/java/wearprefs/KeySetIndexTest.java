@@ -0,0 +1,114 @@
+package wearprefs;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeySetIndexTest {
+
+    private static final String PATH_PREFIX = "/test_";
+
+    /** Answers reads synchronously, as it isn't connected */
+    private LoopbackTransport transport;
+    private KeySetIndex index;
+    private final AtomicInteger flushRequests = new AtomicInteger();
+
+    @Before public void setUp() {
+        transport = new LoopbackTransport.Network().createNode("node");
+        index = new KeySetIndex(transport, new MetricsRecorder(), new Runnable() {
+            @Override public void run() {
+                flushRequests.incrementAndGet();
+            }
+        });
+    }
+
+    @Test public void keysAddedWhileLoadingAreFlushed() {
+        assertFalse(index.add(PATH_PREFIX, "a"));
+        assertEquals(1, flushRequests.get());
+
+        index.flush();
+        assertEquals(Collections.singleton("a"), readKeySet());
+        assertFalse(index.add(PATH_PREFIX, "a"));
+    }
+
+    @Test public void removedKeysLeaveTombstones() {
+        index.add(PATH_PREFIX, "a");
+        index.add(PATH_PREFIX, "b");
+        assertTrue(index.remove(PATH_PREFIX, "a", 100));
+        index.flush();
+
+        assertEquals(Collections.singleton("b"), readKeySet());
+        assertEquals(Collections.singletonMap("a", 100L), readTombstones());
+    }
+
+    @Test public void addingAKeyAgainDropsItsTombstone() {
+        index.add(PATH_PREFIX, "a");
+        index.remove(PATH_PREFIX, "a", 100);
+        assertTrue(index.add(PATH_PREFIX, "a"));
+        index.flush();
+
+        assertEquals(Collections.singleton("a"), readKeySet());
+        assertEquals(Collections.<String, Long>emptyMap(), readTombstones());
+    }
+
+    @Test public void tombstonesOfOtherDevicesRemoveTheirKeys() {
+        KeySetUtil.setKeySet(transport, PATH_PREFIX, Arrays.asList("a", "b"), Collections.singletonMap("b", 100L));
+
+        index.add(PATH_PREFIX, "c");
+        index.flush();
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), readKeySet());
+        assertEquals(Collections.singletonMap("b", 100L), readTombstones());
+    }
+
+    @Test public void tombstonesExpireFromTheirFirstRemoval() {
+        index.add(PATH_PREFIX, "a");
+        index.add(PATH_PREFIX, "b");
+        index.remove(PATH_PREFIX, "a", 100);
+        index.remove(PATH_PREFIX, "a", 300);
+        index.remove(PATH_PREFIX, "b", 200);
+
+        assertEquals(Collections.singletonList("a"), index.expireTombstones(PATH_PREFIX, 150));
+        index.flush();
+        assertEquals(Collections.singletonMap("b", 200L), readTombstones());
+        assertEquals(Collections.<String>emptyList(), index.expireTombstones(PATH_PREFIX, 150));
+    }
+
+    @Test public void expiringAnUnloadedKeySetLoadsIt() {
+        KeySetUtil.setKeySet(transport, PATH_PREFIX, Collections.<String>emptyList(), Collections.singletonMap("a", 100L));
+
+        assertEquals(Collections.<String>emptyList(), index.expireTombstones(PATH_PREFIX, 150));
+        assertEquals(Collections.singletonList("a"), index.expireTombstones(PATH_PREFIX, 150));
+    }
+
+    @NonNull private Set<String> readKeySet() {
+        return new HashSet<>(KeySetUtil.getKeySet(transport, PATH_PREFIX));
+    }
+
+    @NonNull private Map<String, Long> readTombstones() {
+        final List<DataMap> items = new ArrayList<>();
+        transport.getDataMaps(PATH_PREFIX, new Transport.ReadCallback() {
+            @Override public void onResult(@NonNull final List<DataMap> result) {
+                items.addAll(result);
+            }
+        });
+        return KeySetUtil.getTombstonesFromAllNodes(items);
+    }
+
+}
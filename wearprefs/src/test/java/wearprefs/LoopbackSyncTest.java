@@ -0,0 +1,509 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Synchronizes files between WearPrefs instances connected by a {@link LoopbackTransport},
+ * each standing in for a device.
+ */
+public class LoopbackSyncTest {
+
+    private static final String FILE_NAME = "test";
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /** The path prefix of the synchronized file's items, and the path of the item listing its keys */
+    private static final String PATH_PREFIX = "/wearprefs_" + FILE_NAME + "_";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<WearPrefs> instances = new ArrayList<>();
+    private LoopbackTransport.Network network = new LoopbackTransport.Network();
+
+    @After public void tearDown() {
+        for (WearPrefs instance : instances) {
+            instance.release();
+        }
+        network.shutdown();
+    }
+
+    @Test public void changesPropagate() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+        awaitConnected(start("wearable", wearablePrefs, SyncOptions.DEFAULT));
+
+        handheldPrefs.edit()
+                .putString("name", "value")
+                .putInt("volume", 5)
+                .putStringSet("tags", new HashSet<>(Arrays.asList("a", "b")))
+                .commit();
+
+        awaitValue(wearablePrefs, "name", "value");
+        awaitValue(wearablePrefs, "volume", 5);
+        awaitValue(wearablePrefs, "tags", new HashSet<>(Arrays.asList("a", "b")));
+
+        handheldPrefs.edit().remove("name").commit();
+        awaitValue(wearablePrefs, "name", null);
+    }
+
+    @Test public void lazyFilesConnectWhenFirstChanged() throws Exception {
+        final SyncOptions lazy = new SyncOptions.Builder().lazy().build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final ControlledTransport wearableTransport = new ControlledTransport(network.createNode("wearable"));
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+        final WearPrefs wearable = start(wearableTransport, wearablePrefs, lazy, folder.newFolder("wearable"));
+
+        assertTrue(wearable.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, wearableTransport.getConnects());
+
+        wearablePrefs.edit().putString("name", "value").commit();
+        awaitValue(handheldPrefs, "name", "value");
+        assertEquals(1, wearableTransport.getConnects());
+    }
+
+    @Test public void filesInitializedAfterConnectingAreLoaded() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences handheldOtherPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearableOtherPrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, SyncOptions.DEFAULT);
+        handheld.initFor(handheldOtherPrefs, "other", SyncOptions.DEFAULT, System.nanoTime());
+        awaitConnected(handheld);
+        handheldOtherPrefs.edit().putString("name", "value").commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        final WearPrefs wearable = start("wearable", new InMemorySharedPreferences(), SyncOptions.DEFAULT);
+        awaitConnected(wearable);
+        wearable.initFor(wearableOtherPrefs, "other", SyncOptions.DEFAULT, System.nanoTime());
+
+        awaitValue(wearableOtherPrefs, "name", "value");
+    }
+
+    @Test public void receivedValuesAreNotSentBack() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, SyncOptions.DEFAULT);
+        final WearPrefs wearable = start("wearable", wearablePrefs, SyncOptions.DEFAULT);
+        awaitConnected(handheld);
+        awaitConnected(wearable);
+
+        handheldPrefs.edit().putString("name", "value").commit();
+        awaitValue(wearablePrefs, "name", "value");
+
+        assertTrue(wearable.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, wearable.snapshotMetrics().getOutboundPuts());
+        assertEquals(1, wearable.snapshotMetrics().getSuppressedEchoes());
+        assertEquals(1, handheld.snapshotMetrics().getOutboundPuts());
+    }
+
+    @Test public void existingValuesAreLoadedOnConnection() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, SyncOptions.DEFAULT);
+        awaitConnected(handheld);
+        for (int i = 0; i < 100; i++) {
+            handheldPrefs.edit().putInt("key_" + i, i).commit();
+        }
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        start("wearable", wearablePrefs, SyncOptions.DEFAULT);
+        for (int i = 0; i < 100; i++) {
+            awaitValue(wearablePrefs, "key_" + i, i);
+        }
+    }
+
+    @Test public void batchesRoundTrip() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder().batchWindow(TIMEOUT_MILLIS).build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, options);
+        awaitConnected(handheld);
+        awaitConnected(start("wearable", wearablePrefs, options));
+
+        handheldPrefs.edit().putString("name", "value").commit();
+        handheldPrefs.edit().putInt("volume", 5).commit();
+        handheldPrefs.edit().putBoolean("enabled", true).commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, handheld.snapshotMetrics().getOutboundPuts());
+
+        awaitValue(wearablePrefs, "name", "value");
+        awaitValue(wearablePrefs, "volume", 5);
+        awaitValue(wearablePrefs, "enabled", true);
+
+        // Removals are batched too
+        handheldPrefs.edit().remove("volume").commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "volume", null);
+        assertEquals("value", wearablePrefs.getString("name", null));
+    }
+
+    @Test public void staleValuesReceivedAgainAreCountedOnce() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder().batchWindow(TIMEOUT_MILLIS).build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, options);
+        final WearPrefs wearable = start("wearable", wearablePrefs, SyncOptions.DEFAULT);
+        awaitConnected(handheld);
+        awaitConnected(wearable);
+
+        handheldPrefs.edit().putString("name", "old").commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "name", "old");
+        wearablePrefs.edit().putString("name", "new").commit();
+        awaitValue(handheldPrefs, "name", "new");
+
+        // Each batch sends the handheld's older change to the name again
+        handheldPrefs.edit().putInt("volume", 5).commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "volume", 5);
+        handheldPrefs.edit().putInt("volume", 6).commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "volume", 6);
+
+        assertEquals("new", wearablePrefs.getString("name", null));
+        assertEquals(1, wearable.snapshotMetrics().getDroppedStaleValues());
+    }
+
+    @Test public void batchesWaitForThePreviousBatchWithoutBlocking() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder()
+                .batchWindow(TIMEOUT_MILLIS)
+                .immediate("immediate")
+                .build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final ControlledTransport handheldTransport = new ControlledTransport(network.createNode("handheld"));
+        final WearPrefs handheld = start(handheldTransport, handheldPrefs, options, folder.newFolder("handheld"));
+        awaitConnected(handheld);
+        awaitConnected(start("wearable", wearablePrefs, options));
+
+        handheldTransport.holdReads();
+        handheldPrefs.edit().putString("name", "value").commit();
+        final SyncFuture flushed = handheld.flushPending();
+
+        // Other changes are still sent while the previous batch is read
+        handheldPrefs.edit().putString("immediate", "value").commit();
+        awaitValue(wearablePrefs, "immediate", "value");
+        assertFalse(flushed.isDone());
+
+        handheldTransport.releaseReads();
+        assertTrue(flushed.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "name", "value");
+    }
+
+    @Test public void largeBatchesAreSpilledIntoItems() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder().batchWindow(TIMEOUT_MILLIS).build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, options);
+        awaitConnected(handheld);
+        awaitConnected(start("wearable", wearablePrefs, options));
+
+        // More than fits in one DataApi item
+        final char[] chars = new char[10000];
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(chars, (char) ('a' + i));
+            handheldPrefs.edit().putString("key_" + i, new String(chars)).commit();
+        }
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(chars, (char) ('a' + i));
+            awaitValue(wearablePrefs, "key_" + i, new String(chars));
+        }
+
+        // The batch starts again once spilled
+        handheldPrefs.edit().putString("name", "value").commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "name", "value");
+    }
+
+    @Test public void concurrentChangesConverge() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+        awaitConnected(start("wearable", wearablePrefs, SyncOptions.DEFAULT));
+
+        for (int i = 0; i < 20; i++) {
+            wearablePrefs.edit().putInt("volume", i).commit();
+            handheldPrefs.edit().putInt("volume", -i).commit();
+        }
+
+        // Either change may win, but both devices choose the same one
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!equal(handheldPrefs.getAll().get("volume"), wearablePrefs.getAll().get("volume"))) {
+            if (System.currentTimeMillis() > deadline) {
+                assertEquals(handheldPrefs.getAll().get("volume"), wearablePrefs.getAll().get("volume"));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test public void sendsDontOverwriteReceivedValuesBeingSaved() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final InMemorySharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final ControlledTransport wearableTransport = new ControlledTransport(network.createNode("wearable"));
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+        final WearPrefs wearable = start(wearableTransport, wearablePrefs, SyncOptions.DEFAULT,
+                folder.newFolder("wearable"));
+        awaitConnected(wearable);
+        awaitIdle(wearable);
+
+        // The wearable's change is queued behind the write of a new key to the key set, which doesn't complete yet
+        wearableTransport.holdWrites(PATH_PREFIX);
+        wearablePrefs.edit().putString("other", "value").commit();
+        assertTrue(wearableTransport.awaitHeldWrite(TIMEOUT_MILLIS));
+        wearablePrefs.edit().putString("name", "wearable").commit();
+        Thread.sleep(10);
+
+        // The handheld's later change is being saved when the wearable's is sent
+        wearablePrefs.holdEdits();
+        handheldPrefs.edit().putString("name", "handheld").commit();
+        assertTrue(wearablePrefs.awaitHeldEdit(TIMEOUT_MILLIS));
+        wearableTransport.releaseWrites();
+        Thread.sleep(200);
+        wearablePrefs.releaseEdits();
+
+        awaitValue(wearablePrefs, "name", "handheld");
+        awaitValue(handheldPrefs, "name", "handheld");
+    }
+
+    @Test public void journaledChangesAreKeptUntilWritten() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+
+        // Journaled by a previous process that was killed while disconnected
+        final File journalDir = folder.newFolder("wearable");
+        final File journalFile = new File(journalDir, FILE_NAME + ".journal");
+        wearablePrefs.edit().putString("name", "value").commit();
+        new OutboundJournal(journalFile).append("name", 0);
+
+        final ControlledTransport wearableTransport = new ControlledTransport(network.createNode("wearable"));
+        wearableTransport.holdWrites(PATH_PREFIX + "name");
+        final WearPrefs wearable = start(wearableTransport, wearablePrefs, SyncOptions.DEFAULT, journalDir);
+        assertTrue(wearableTransport.awaitHeldWrite(TIMEOUT_MILLIS));
+        assertEquals(Collections.singleton("name"), new OutboundJournal(journalFile).getClocks().keySet());
+
+        wearableTransport.releaseWrites();
+        awaitValue(handheldPrefs, "name", "value");
+        awaitConnected(wearable);
+        awaitIdle(wearable);
+        assertFalse(journalFile.exists());
+    }
+
+    @Test public void remoteChangesAreDeliveredTogether() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder().batchWindow(TIMEOUT_MILLIS).build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, options);
+        final WearPrefs wearable = start("wearable", wearablePrefs, options);
+        awaitConnected(handheld);
+        awaitConnected(wearable);
+
+        wearablePrefs.edit().putInt("volume", 1).commit();
+        assertTrue(wearable.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(handheldPrefs, "volume", 1);
+
+        final BlockingQueue<RemoteChangeEvent> events = new LinkedBlockingQueue<>();
+        wearable.getFile(FILE_NAME).changeListeners.put(new RemoteChangeListener() {
+            @Override public void onRemoteChanges(@NonNull final RemoteChangeEvent event) {
+                events.add(event);
+            }
+        }, new Executor() {
+            @Override public void execute(@NonNull final Runnable command) {
+                command.run();
+            }
+        });
+
+        handheldPrefs.edit().putString("name", "value").commit();
+        handheldPrefs.edit().putInt("volume", 2).commit();
+        handheldPrefs.edit().putInt("volume", 5).commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Each key is listed once, with its value before the batch
+        final RemoteChangeEvent event = events.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(FILE_NAME, event.getFileName());
+        assertEquals(2, event.getChanges().size());
+        final Map<String, RemoteChangeEvent.Change> changes = new HashMap<>();
+        for (RemoteChangeEvent.Change change : event.getChanges()) {
+            assertNotNull(change.getOrigin());
+            assertTrue(change.getClock() > 0);
+            changes.put(change.getKey(), change);
+        }
+        assertNull(changes.get("name").getOldValue());
+        assertEquals("value", changes.get("name").getNewValue());
+        assertEquals(1, changes.get("volume").getOldValue());
+        assertEquals(5, changes.get("volume").getNewValue());
+
+        handheldPrefs.edit().remove("name").commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        final RemoteChangeEvent.Change removal = events.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getChanges().get(0);
+        assertTrue(removal.isRemoval());
+        assertEquals("value", removal.getOldValue());
+
+        // Changes made on this device aren't delivered
+        wearablePrefs.edit().putInt("volume", 6).commit();
+        assertTrue(wearable.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(handheldPrefs, "volume", 6);
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void receivedValuesKeepTheKeysType() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+        awaitConnected(start("wearable", wearablePrefs, SyncOptions.DEFAULT));
+
+        wearablePrefs.edit().putLong("count", 1L).commit();
+        awaitValue(handheldPrefs, "count", 1L);
+
+        // Fits in the wearable's long, so keeps its type
+        handheldPrefs.edit().putInt("count", 5).commit();
+        awaitValue(wearablePrefs, "count", 5L);
+
+        // Doesn't fit in the handheld's int, so takes the sender's type
+        wearablePrefs.edit().putLong("count", Long.MAX_VALUE).commit();
+        awaitValue(handheldPrefs, "count", Long.MAX_VALUE);
+    }
+
+    @Test public void excludedKeysAreNotSynchronized() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder().exclude("local_*").build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final WearPrefs handheld = start("handheld", handheldPrefs, options);
+        awaitConnected(handheld);
+        awaitConnected(start("wearable", wearablePrefs, options));
+
+        handheldPrefs.edit().putString("local_name", "value").commit();
+        handheldPrefs.edit().putString("name", "value").commit();
+        awaitValue(wearablePrefs, "name", "value");
+
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, handheld.snapshotMetrics().getOutboundPuts());
+        assertNull(wearablePrefs.getString("local_name", null));
+    }
+
+    @Test public void largeValuesAreSentAsAssets() throws Exception {
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        awaitConnected(start("handheld", handheldPrefs, SyncOptions.DEFAULT));
+        awaitConnected(start("wearable", wearablePrefs, SyncOptions.DEFAULT));
+
+        final String value = randomString(ValueCodec.ASSET_THRESHOLD_BYTES * 2);
+        handheldPrefs.edit().putString("name", value).commit();
+
+        awaitValue(wearablePrefs, "name", value);
+    }
+
+    @Test public void assetsReceivedAgainAreNotRead() throws Exception {
+        final SyncOptions options = new SyncOptions.Builder().batchWindow(TIMEOUT_MILLIS).build();
+        final SharedPreferences handheldPrefs = new InMemorySharedPreferences();
+        final SharedPreferences wearablePrefs = new InMemorySharedPreferences();
+        final ControlledTransport wearableTransport = new ControlledTransport(network.createNode("wearable"));
+        final WearPrefs handheld = start("handheld", handheldPrefs, options);
+        awaitConnected(handheld);
+        awaitConnected(start(wearableTransport, wearablePrefs, options, folder.newFolder("wearable")));
+
+        final String value = randomString(ValueCodec.ASSET_THRESHOLD_BYTES * 2);
+        handheldPrefs.edit().putString("name", value).commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "name", value);
+
+        // Sent again in the next batch, and recognised before its Asset is read
+        handheldPrefs.edit().putInt("volume", 5).commit();
+        assertTrue(handheld.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitValue(wearablePrefs, "volume", 5);
+
+        assertEquals(1, wearableTransport.getOpenedAssets());
+    }
+
+    private WearPrefs start(final String nodeId, final SharedPreferences prefs, final SyncOptions options) {
+        return start(network.createNode(nodeId), prefs, options, new File(folder.getRoot(), nodeId));
+    }
+
+    /** Starts an instance, with the given directory standing in for its device's files directory */
+    private WearPrefs start(final Transport transport, final SharedPreferences prefs, final SyncOptions options,
+                            final File journalDir) {
+        final WearPrefs instance = new WearPrefs(transport, journalDir);
+        instances.add(instance);
+        instance.initFor(prefs, FILE_NAME, options, System.nanoTime());
+        return instance;
+    }
+
+    /** Waits until the instance has connected, and has nothing left to send */
+    private static void awaitConnected(final WearPrefs instance) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!instance.flushPending().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Did not connect");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /** Waits until the instance has no queued work, such as resyncs started by connecting */
+    private static void awaitIdle(final WearPrefs instance) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (instance.snapshotMetrics().getInboundQueueDepth() > 0
+                || instance.snapshotMetrics().getOutboundQueueDepth() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Did not finish queued work");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitValue(final SharedPreferences prefs, final String key, @Nullable final Object expected)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!equal(expected, prefs.getAll().get(key))) {
+            if (System.currentTimeMillis() > deadline) {
+                assertEquals(expected, prefs.getAll().get(key));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /** A string that doesn't compress below the given length */
+    private static String randomString(final int length) {
+        final Random random = new Random(0);
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) (0x4e00 + random.nextInt(0x5000)));
+        }
+        return builder.toString();
+    }
+
+    private static boolean equal(@Nullable final Object a, @Nullable final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
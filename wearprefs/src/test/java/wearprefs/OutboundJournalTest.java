@@ -0,0 +1,128 @@
+package wearprefs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void keysAndClocksSurviveReload() throws IOException {
+        final File file = new File(folder.getRoot(), "prefs.journal");
+        final OutboundJournal journal = new OutboundJournal(file);
+        journal.append("b", 10);
+        journal.append("a", 20);
+        journal.append("b", 30);
+
+        final Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put("b", 30L);
+        expected.put("a", 20L);
+        assertEquals(expected, new OutboundJournal(file).getClocks());
+    }
+
+    @Test public void olderClocksAreIgnored() {
+        final OutboundJournal journal = new OutboundJournal(null);
+        journal.append("a", 20);
+        journal.append("a", 10);
+
+        assertEquals(Collections.singletonMap("a", 20L), journal.getClocks());
+    }
+
+    @Test public void replayedKeysAreKeptUntilSent() {
+        final File file = new File(folder.getRoot(), "prefs.journal");
+        final OutboundJournal journal = new OutboundJournal(file);
+        journal.append("a", 1);
+        journal.append("b", 2);
+
+        assertEquals(Arrays.asList("a", "b"), journal.replay());
+        assertTrue(journal.isEmpty());
+        assertEquals(Collections.<String>emptyList(), journal.replay());
+
+        // A process killed before the writes succeed replays them again
+        assertEquals(Arrays.asList("a", "b"), new OutboundJournal(file).replay());
+
+        journal.removeSent(Collections.singletonMap("a", 1L));
+        assertEquals(Collections.singletonMap("b", 2L), new OutboundJournal(file).getClocks());
+
+        journal.removeSent(Collections.singletonMap("b", 2L));
+        assertFalse(file.exists());
+        assertTrue(new OutboundJournal(file).isEmpty());
+    }
+
+    @Test public void keysChangedWhileBeingSentAreKept() {
+        final OutboundJournal journal = new OutboundJournal(null);
+        journal.append("a", 1);
+        journal.replay();
+        journal.append("a", 2);
+        assertFalse(journal.isEmpty());
+
+        journal.removeSent(Collections.singletonMap("a", 1L));
+        assertEquals(Collections.singletonMap("a", 2L), journal.getClocks());
+        assertEquals(Collections.singletonList("a"), journal.replay());
+    }
+
+    @Test public void failedKeysAreReplayedAgain() {
+        final OutboundJournal journal = new OutboundJournal(null);
+        journal.append("a", 1);
+        journal.replay();
+
+        // Journaled again by the failed write
+        journal.append("a", 1);
+        assertFalse(journal.isEmpty());
+        assertEquals(Collections.singletonList("a"), journal.replay());
+    }
+
+    @Test public void repeatedChangesDontGrowTheFile() {
+        final File file = new File(folder.getRoot(), "prefs.journal");
+        final OutboundJournal journal = new OutboundJournal(file);
+        for (int i = 1; i <= 1000; i++) {
+            journal.append("a", i);
+            journal.append("b", i);
+        }
+
+        // writeUTF and writeLong of a one character key
+        final int recordBytes = 2 + 1 + 8;
+        assertTrue(file.length() <= 4 * recordBytes);
+
+        final Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put("a", 1000L);
+        expected.put("b", 1000L);
+        assertEquals(expected, new OutboundJournal(file).getClocks());
+    }
+
+    @Test public void truncatedLastRecordIsIgnored() throws IOException {
+        final File file = new File(folder.getRoot(), "prefs.journal");
+        new OutboundJournal(file).append("a", 1);
+
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[]{0, 1, 'b', 0, 0});
+        } finally {
+            out.close();
+        }
+
+        final OutboundJournal reloaded = new OutboundJournal(file);
+        assertEquals(Collections.singletonMap("a", 1L), reloaded.getClocks());
+
+        // Records appended after the truncated one can be read
+        reloaded.append("c", 2);
+        final Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put("a", 1L);
+        expected.put("c", 2L);
+        assertEquals(expected, new OutboundJournal(file).getClocks());
+    }
+
+}
@@ -0,0 +1,119 @@
+package wearprefs;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotPreferencesTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private InMemorySharedPreferences backing;
+    private SnapshotPreferences prefs;
+
+    @Before public void setUp() {
+        backing = new InMemorySharedPreferences();
+        backing.edit().putString("existing", "value").commit();
+        prefs = new SnapshotPreferences(backing);
+    }
+
+    @Test public void readsReturnWrittenValues() {
+        assertEquals("value", prefs.getString("existing", null));
+
+        prefs.edit()
+                .putString("string", "value")
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b")))
+                .putInt("int", 1)
+                .putLong("long", 2L)
+                .putFloat("float", 3f)
+                .putBoolean("boolean", true)
+                .remove("existing")
+                .apply();
+
+        assertEquals("value", prefs.getString("string", null));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), prefs.getStringSet("set", null));
+        assertEquals(1, prefs.getInt("int", 0));
+        assertEquals(2L, prefs.getLong("long", 0L));
+        assertEquals(3f, prefs.getFloat("float", 0f), 0f);
+        assertTrue(prefs.getBoolean("boolean", false));
+        assertFalse(prefs.contains("existing"));
+        assertEquals("default", prefs.getString("existing", "default"));
+    }
+
+    @Test public void snapshotsDontChange() {
+        final Map<String, ?> before = prefs.getAll();
+        prefs.edit().putString("existing", "changed").putInt("int", 1).apply();
+
+        assertEquals(Collections.singletonMap("existing", "value"), before);
+        try {
+            prefs.getAll().clear();
+            fail("Snapshot was modified");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    @Test public void commitPersistsBeforeReturning() {
+        assertTrue(prefs.edit().putString("name", "value").remove("existing").commit());
+
+        assertEquals(Collections.singletonMap("name", "value"), backing.getAll());
+    }
+
+    @Test public void commitReturnsWhetherTheWriteSucceeded() {
+        backing.failCommits();
+
+        assertFalse(prefs.edit().putString("name", "value").commit());
+        assertEquals("value", prefs.getString("name", null));
+        assertFalse(backing.contains("name"));
+    }
+
+    @Test public void applyPersistsInTheBackground() throws InterruptedException {
+        prefs.edit().putString("name", "value").apply();
+        prefs.edit().putInt("count", 1).apply();
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (backing.getAll().size() < 3) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Not persisted");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals("value", backing.getString("name", null));
+        assertEquals(1, backing.getInt("count", 0));
+    }
+
+    @Test public void listenersAreNotifiedOfChangedKeys() throws InterruptedException {
+        final BlockingQueue<String> changedKeys = new LinkedBlockingQueue<>();
+        final SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences,
+                                                                    final String key) {
+                        changedKeys.add(key);
+                    }
+                };
+        prefs.registerOnSharedPreferenceChangeListener(listener);
+
+        prefs.edit().putString("existing", "value").putString("name", "value").commit();
+        assertEquals("name", changedKeys.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        prefs.unregisterOnSharedPreferenceChangeListener(listener);
+        prefs.edit().putString("name", "changed").commit();
+        assertNull(changedKeys.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+}
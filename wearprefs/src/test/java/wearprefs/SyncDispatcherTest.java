@@ -0,0 +1,132 @@
+package wearprefs;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncDispatcherTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private SyncDispatcher dispatcher;
+
+    @After public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test public void tasksRunInOrder() throws InterruptedException {
+        dispatcher = new SyncDispatcher("test");
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            dispatcher.post(new Runnable() {
+                @Override public void run() {
+                    order.add(index);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test public void postBlocksWhileFull() throws InterruptedException {
+        dispatcher = new SyncDispatcher("test", 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.post(await(release));
+        dispatcher.post(await(release));
+        assertEquals(2, dispatcher.getQueueDepth());
+
+        final CountDownLatch posted = new CountDownLatch(1);
+        final Thread poster = new Thread(new Runnable() {
+            @Override public void run() {
+                dispatcher.post(await(release));
+                posted.countDown();
+            }
+        });
+        poster.start();
+
+        assertFalse(posted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(posted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test public void tasksPostToAFullLaneWithoutBlocking() throws InterruptedException {
+        dispatcher = new SyncDispatcher("test", 1);
+        final CountDownLatch nestedRan = new CountDownLatch(1);
+
+        dispatcher.post(new Runnable() {
+            @Override public void run() {
+                // The lane is full with this task, which would wait for itself
+                dispatcher.post(new Runnable() {
+                    @Override public void run() {
+                        nestedRan.countDown();
+                    }
+                });
+            }
+        });
+
+        assertTrue(nestedRan.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test public void failedTasksDontStopTheLane() throws InterruptedException {
+        dispatcher = new SyncDispatcher("test");
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        dispatcher.post(new Runnable() {
+            @Override public void run() {
+                throw new IllegalStateException("Expected by the test");
+            }
+        });
+        dispatcher.post(new Runnable() {
+            @Override public void run() {
+                ran.countDown();
+            }
+        });
+
+        assertTrue(ran.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test public void tasksPostedAfterShutdownAreDropped() throws InterruptedException {
+        dispatcher = new SyncDispatcher("test");
+        final CountDownLatch ran = new CountDownLatch(1);
+        dispatcher.post(await(new CountDownLatch(0)));
+        dispatcher.shutdown();
+
+        assertFalse(dispatcher.post(new Runnable() {
+            @Override public void run() {
+                ran.countDown();
+            }
+        }));
+        assertTrue(dispatcher.awaitTermination(TIMEOUT_SECONDS * 1000));
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(1, ran.getCount());
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,48 @@
+package wearprefs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TypeUtilTest {
+
+    @Test public void wholeNumbersConvertWhenInRange() {
+        assertEquals(5L, TypeUtil.convert(5, TypeUtil.TYPE_LONG));
+        assertEquals(5, TypeUtil.convert(5L, TypeUtil.TYPE_INT));
+        assertEquals(5, TypeUtil.convert((short) 5, TypeUtil.TYPE_INT));
+        assertNull(TypeUtil.convert(Long.MAX_VALUE, TypeUtil.TYPE_INT));
+    }
+
+    @Test public void numbersConvertToFloatWhenExact() {
+        assertEquals(5f, TypeUtil.convert(5, TypeUtil.TYPE_FLOAT));
+        assertEquals(1.5f, TypeUtil.convert(1.5, TypeUtil.TYPE_FLOAT));
+        assertNull(TypeUtil.convert((1L << 24) + 1, TypeUtil.TYPE_FLOAT));
+    }
+
+    @Test public void stringListsConvertToSets() {
+        final ArrayList<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        assertEquals(new HashSet<>(list), TypeUtil.convert(list, TypeUtil.TYPE_STRING_SET));
+        assertEquals(new HashSet<>(list), TypeUtil.convert(new String[]{"a", "b"}, TypeUtil.TYPE_STRING_SET));
+    }
+
+    @Test public void mismatchedTypesDontConvert() {
+        assertNull(TypeUtil.convert("5", TypeUtil.TYPE_INT));
+        assertNull(TypeUtil.convert(5, TypeUtil.TYPE_STRING));
+        assertNull(TypeUtil.convert(1.5f, TypeUtil.TYPE_LONG));
+        assertNull(TypeUtil.convert(true, TypeUtil.TYPE_INT));
+        assertNull(TypeUtil.convert(5, TypeUtil.TYPE_NONE));
+    }
+
+    @Test public void untaggedValuesTakeTheClosestType() {
+        assertEquals(TypeUtil.TYPE_INT, TypeUtil.closestType((byte) 5));
+        assertEquals(TypeUtil.TYPE_FLOAT, TypeUtil.closestType(1.5));
+        assertEquals(TypeUtil.TYPE_STRING_SET, TypeUtil.closestType(new String[]{"a"}));
+        assertEquals(TypeUtil.TYPE_LONG, TypeUtil.closestType(5L));
+    }
+
+}
@@ -0,0 +1,123 @@
+package wearprefs;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ValueCodecTest {
+
+    private static final String KEY = "key";
+
+    private LoopbackTransport.Network network;
+    private Transport transport;
+
+    @Before public void setUp() {
+        network = new LoopbackTransport.Network();
+        transport = network.createNode("test");
+    }
+
+    @After public void tearDown() {
+        network.shutdown();
+    }
+
+    @Test public void valuesAreNotEncodedByDefault() {
+        final DataMap dataMap = new DataMap();
+        ValueCodec.saveObject(dataMap, KEY, TypeUtil.TYPE_STRING, "value", SyncOptions.DEFAULT);
+
+        assertEquals("value", dataMap.get(KEY));
+        assertEquals("value", ValueCodec.decode(dataMap.get(KEY), transport));
+    }
+
+    @Test public void compactStringsRoundTrip() {
+        final SyncOptions options = new SyncOptions.Builder().compactEncoding(16).build();
+        final String[] values = {repeat("compressible ", 100), repeat("\u00e9\u4e2d\ud83d\ude00", 10)};
+
+        for (String value : values) {
+            final DataMap dataMap = new DataMap();
+            ValueCodec.saveObject(dataMap, KEY, TypeUtil.TYPE_STRING, value, options);
+
+            assertTrue(dataMap.get(KEY) instanceof DataMap);
+            assertEquals(value, ValueCodec.decode(dataMap.get(KEY), transport));
+        }
+    }
+
+    @Test public void compactEncodingLeavesSmallStrings() {
+        final SyncOptions options = new SyncOptions.Builder().compactEncoding(16).build();
+
+        final DataMap dataMap = new DataMap();
+        ValueCodec.saveObject(dataMap, KEY, TypeUtil.TYPE_STRING, "short", options);
+
+        assertEquals("short", dataMap.get(KEY));
+    }
+
+    @Test public void compactStringSetsRoundTrip() {
+        final SyncOptions options = new SyncOptions.Builder().compactEncoding(16).build();
+        final Set<String> value = new HashSet<>(Arrays.asList("a", "b", repeat("c", 1000)));
+
+        final DataMap dataMap = new DataMap();
+        ValueCodec.saveObject(dataMap, KEY, TypeUtil.TYPE_STRING_SET, value, options);
+
+        assertEquals(value, ValueCodec.decode(dataMap.get(KEY), transport));
+    }
+
+    @Test public void otherTypesAreNotEncoded() {
+        final SyncOptions options = new SyncOptions.Builder().compactEncoding(16).build();
+
+        final DataMap dataMap = new DataMap();
+        ValueCodec.saveObject(dataMap, KEY, TypeUtil.TYPE_LONG, 42L, options);
+
+        assertEquals(42L, dataMap.get(KEY));
+    }
+
+    @Test public void largeValuesAreSentAsAssets() {
+        final String value = randomString(ValueCodec.ASSET_THRESHOLD_BYTES * 2);
+
+        final DataMap dataMap = new DataMap();
+        ValueCodec.saveObject(dataMap, KEY, TypeUtil.TYPE_STRING, value, SyncOptions.DEFAULT);
+
+        assertTrue(ValueCodec.isAsset(dataMap.get(KEY)));
+        assertEquals(value, ValueCodec.decode(dataMap.get(KEY), transport));
+    }
+
+    @Test public void smallValuesAreNotAssets() {
+        assertFalse(ValueCodec.isAsset("value"));
+        assertFalse(ValueCodec.isAsset(new DataMap()));
+        assertFalse(ValueCodec.isAsset(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valuesWithoutDataFailToDecode() {
+        ValueCodec.decode(new DataMap(), transport);
+    }
+
+    private static String repeat(final String string, final int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+
+
+    /** A string that doesn't compress below the given length */
+    private static String randomString(final int length) {
+        final Random random = new Random(0);
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) (0x4e00 + random.nextInt(0x5000)));
+        }
+        return builder.toString();
+    }
+
+}